@@ -0,0 +1,102 @@
+package org.sillyweasel.rooaddons.cometd;
+
+import org.springframework.roo.classpath.PhysicalTypeMetadata;
+import org.springframework.roo.classpath.details.annotations.AnnotationAttributeValue;
+import org.springframework.roo.classpath.details.annotations.populator.AbstractAnnotationValues;
+import org.springframework.roo.classpath.details.annotations.populator.AutoPopulate;
+import org.springframework.roo.classpath.details.annotations.populator.AutoPopulationUtils;
+import org.springframework.roo.model.EnumDetails;
+import org.springframework.roo.model.JavaSymbolName;
+import org.springframework.roo.model.JavaType;
+
+/**
+ * The values of a {@link RooCometd} annotation found on a governor. Field defaults mirror the
+ * annotation's so an absent attribute reads the same as one left at its default.
+ *
+ * @since 1.1
+ */
+public class CometdAnnotationValues extends AbstractAnnotationValues {
+
+  public static final JavaType ROO_COMETD = new JavaType(RooCometd.class.getName());
+
+  @AutoPopulate private String channel = "";
+  @AutoPopulate private boolean lazy = false;
+  @AutoPopulate private int batchSize = 100;
+  @AutoPopulate private long flushMillis = 50;
+  @AutoPopulate private boolean service = false;
+  @AutoPopulate private boolean clustered = false;
+  @AutoPopulate private boolean metrics = false;
+  @AutoPopulate private boolean conflate = false;
+  @AutoPopulate private String conflationKey = "id";
+  @AutoPopulate private boolean bridged = false;
+  @AutoPopulate private int history = 0;
+  @AutoPopulate private long historyMillis = 0;
+  @AutoPopulate private boolean striped = false;
+  private CometdFormat format = CometdFormat.MAP;
+
+  public CometdAnnotationValues(PhysicalTypeMetadata governorPhysicalTypeMetadata) {
+    super(governorPhysicalTypeMetadata, ROO_COMETD);
+    AutoPopulationUtils.populate(this, annotationMetadata);
+    // The enum is read by name, it is not loaded from the project
+    AnnotationAttributeValue<?> formatValue = annotationMetadata == null ? null : annotationMetadata.getAttribute(new JavaSymbolName("format"));
+    if (formatValue != null && formatValue.getValue() instanceof EnumDetails) {
+      format = CometdFormat.valueOf(((EnumDetails) formatValue.getValue()).getField().getSymbolName());
+    }
+  }
+
+  public String getChannel() {
+    return channel;
+  }
+
+  public boolean isLazy() {
+    return lazy;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public long getFlushMillis() {
+    return flushMillis;
+  }
+
+  public boolean isService() {
+    return service;
+  }
+
+  public boolean isClustered() {
+    return clustered;
+  }
+
+  public boolean isMetrics() {
+    return metrics;
+  }
+
+  public boolean isConflate() {
+    return conflate;
+  }
+
+  public String getConflationKey() {
+    return conflationKey;
+  }
+
+  public boolean isBridged() {
+    return bridged;
+  }
+
+  public int getHistory() {
+    return history;
+  }
+
+  public long getHistoryMillis() {
+    return historyMillis;
+  }
+
+  public boolean isStriped() {
+    return striped;
+  }
+
+  public CometdFormat getFormat() {
+    return format;
+  }
+}
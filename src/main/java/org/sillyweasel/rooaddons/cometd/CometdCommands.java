@@ -1,10 +1,16 @@
 package org.sillyweasel.rooaddons.cometd;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.springframework.roo.model.JavaPackage;
+import org.springframework.roo.model.JavaType;
 import org.springframework.roo.shell.CliAvailabilityIndicator;
 import org.springframework.roo.shell.CliCommand;
+import org.springframework.roo.shell.CliOption;
 import org.springframework.roo.shell.CommandMarker;
 
 /**
@@ -41,17 +47,119 @@ public class CometdCommands implements CommandMarker { // All command types must
     return operations.isSetupAvailable();
   }
 
+  @CliAvailabilityIndicator({"cometd annotate"})
+  public boolean isAnnotateCommandAvailable() {
+    return operations.isAnnotateAvailable();
+  }
+
   @CliAvailabilityIndicator({"cometd remove"})
   public boolean isRemoveCommandAvailable() {
     return operations.isRemoveAvailable();
   }
 
+  @CliAvailabilityIndicator({"cometd cluster"})
+  public boolean isClusterCommandAvailable() {
+    return operations.isClusterAvailable();
+  }
+
+  @CliAvailabilityIndicator({"cometd metrics"})
+  public boolean isMetricsCommandAvailable() {
+    return operations.isMetricsAvailable();
+  }
+
+  @CliAvailabilityIndicator({"cometd benchmark"})
+  public boolean isBenchmarkCommandAvailable() {
+    return operations.isBenchmarkAvailable();
+  }
+
+  @CliAvailabilityIndicator({"cometd loadtest"})
+  public boolean isLoadTestCommandAvailable() {
+    return operations.isLoadTestAvailable();
+  }
+
+  @CliAvailabilityIndicator({"cometd channels"})
+  public boolean isChannelsCommandAvailable() {
+    return operations.isChannelsAvailable();
+  }
+
+  @CliAvailabilityIndicator({"cometd bridge"})
+  public boolean isBridgeCommandAvailable() {
+    return operations.isBridgeAvailable();
+  }
+
+  @CliAvailabilityIndicator({"cometd ratelimit"})
+  public boolean isRateLimitCommandAvailable() {
+    return operations.isRateLimitAvailable();
+  }
+
+  @CliAvailabilityIndicator({"cometd security"})
+  public boolean isSecurityCommandAvailable() {
+    return operations.isSecurityAvailable();
+  }
+
   /**
-   * This method registers a command with the Roo shell. It has no command attribute.
+   * This method registers a command with the Roo shell. The profile selects a tuned set of servlet init-params,
+   * any explicit option overrides the profile's value.
    */
   @CliCommand(value = "cometd setup", help = "Setup Cometd addon")
-  public void setup() {
-    operations.setup();
+  public void setup(
+      @CliOption(key = "profile", mandatory = false, unspecifiedDefaultValue = "DEFAULT", specifiedDefaultValue = "DEFAULT", help = "The servlet tuning profile: DEFAULT, LOW_LATENCY or HIGH_FANOUT") CometdProfile profile,
+      @CliOption(key = "timeout", mandatory = false, help = "Long-poll timeout in milliseconds") Long timeout,
+      @CliOption(key = "interval", mandatory = false, help = "Client delay between long-polls in milliseconds") Long interval,
+      @CliOption(key = "maxInterval", mandatory = false, help = "Milliseconds without a poll before a session is expired") Long maxInterval,
+      @CliOption(key = "maxLazyTimeout", mandatory = false, help = "Maximum delay of lazy messages in milliseconds") Long maxLazyTimeout,
+      @CliOption(key = "maxQueue", mandatory = false, help = "Maximum messages queued per session, -1 for unbounded") Integer maxQueue,
+      @CliOption(key = "sweepIntervalMs", mandatory = false, help = "Period of the session and channel sweeper in milliseconds") Long sweepIntervalMs,
+      @CliOption(key = "wsBufferSize", mandatory = false, help = "WebSocket transport buffer size in bytes") Integer wsBufferSize,
+      @CliOption(key = "wsMaxMessageSize", mandatory = false, help = "Largest WebSocket message accepted, in bytes") Integer wsMaxMessageSize,
+      @CliOption(key = "logLevel", mandatory = false, help = "CometD log level, 0 (off) to 3 (debug)") Integer logLevel,
+      @CliOption(key = "transports", mandatory = false, unspecifiedDefaultValue = "websocket,long-polling", help = "Comma separated transports allowed, highest priority first: websocket, long-polling, callback-polling") String transports,
+      @CliOption(key = "jackson", mandatory = false, unspecifiedDefaultValue = "false", specifiedDefaultValue = "true", help = "Serialise messages with a generated Jackson JSON context") boolean jackson,
+      @CliOption(key = "ack", mandatory = false, unspecifiedDefaultValue = "false", specifiedDefaultValue = "true", help = "Enable the acknowledged messages extension on server and client") boolean ack,
+      @CliOption(key = "compression", mandatory = false, unspecifiedDefaultValue = "false", specifiedDefaultValue = "true", help = "Compress long-polling responses; WebSocket frames are compressed when the browser negotiates it") boolean compression,
+      @CliOption(key = "executorThreads", mandatory = false, help = "Threads running CometdService handlers when virtual threads are unavailable") Integer executorThreads,
+      @CliOption(key = "executorQueue", mandatory = false, help = "CometdService handlers waiting for a thread before the rejection applies") Integer executorQueue,
+      @CliOption(key = "executorRejection", mandatory = false, help = "Handling of CometdService handlers beyond the queue: CALLER_RUNS or DISCARD") CometdRejection executorRejection,
+      @CliOption(key = "allWebModules", mandatory = false, unspecifiedDefaultValue = "false", specifiedDefaultValue = "true", help = "Setup every module with a WEB-INF/web.xml, not only the focused one") boolean allWebModules) {
+
+    Map<String, String> initParams = new LinkedHashMap<String, String>(profile.getInitParams());
+    putIfSpecified(initParams, "timeout", timeout);
+    putIfSpecified(initParams, "interval", interval);
+    putIfSpecified(initParams, "maxInterval", maxInterval);
+    putIfSpecified(initParams, "maxLazyTimeout", maxLazyTimeout);
+    putIfSpecified(initParams, "maxQueue", maxQueue);
+    putIfSpecified(initParams, "sweepIntervalMs", sweepIntervalMs);
+    putIfSpecified(initParams, "ws.bufferSize", wsBufferSize);
+    putIfSpecified(initParams, "ws.maxMessageSize", wsMaxMessageSize);
+    putIfSpecified(initParams, "logLevel", logLevel);
+    initParams.put("allowedTransports", CometdTransport.join(CometdTransport.parse(transports)));
+
+    Map<String, String> executorParams = new LinkedHashMap<String, String>();
+    putIfSpecified(executorParams, "executor.threads", executorThreads);
+    putIfSpecified(executorParams, "executor.queue", executorQueue);
+    if (executorRejection != null) {
+      executorParams.put("executor.rejection", executorRejection.name());
+    }
+
+    if (allWebModules) {
+      operations.setupAllWebModules(initParams, jackson, ack, compression, executorParams);
+    } else {
+      operations.setup(initParams, jackson, ack, compression, executorParams);
+    }
+  }
+
+  /**
+   * Annotates a single type, or every @RooJavaBean type not yet annotated, optionally within a package
+   */
+  @CliCommand(value = "cometd annotate", help = "Add @RooCometd to a type or to all @RooJavaBean types")
+  public void annotate(
+      @CliOption(key = "type", mandatory = false, help = "The type to annotate; all @RooJavaBean types when omitted") JavaType type,
+      @CliOption(key = "package", mandatory = false, help = "Only annotate @RooJavaBean types in this package and its sub-packages") JavaPackage javaPackage) {
+    if (type != null) {
+      operations.annotateType(type);
+    } else {
+      operations.annotateAll(javaPackage);
+    }
   }
 
   @CliCommand(value = "cometd remove", help = "Remove Cometd addon")
@@ -59,4 +167,82 @@ public class CometdCommands implements CommandMarker { // All command types must
     operations.remove();
   }
 
+  /**
+   * Scaffolds Oort/Seti clustering. Run once per @RooCometd type to observe with --type; for several nodes on
+   * localhost, start each with its own -Dcometd.oort.url and list the others in --cloud.
+   */
+  @CliCommand(value = "cometd cluster", help = "Cluster the Cometd servlet with Oort and Seti")
+  public void cluster(
+      @CliOption(key = "url", mandatory = false, unspecifiedDefaultValue = "http://localhost:8080/cometd", help = "Default URL of this node's cometd servlet") String url,
+      @CliOption(key = "cloud", mandatory = false, help = "Comma separated URLs of the other nodes' cometd servlets") String cloud,
+      @CliOption(key = "multicast", mandatory = false, unspecifiedDefaultValue = "false", specifiedDefaultValue = "true", help = "Discover nodes by multicast instead of a static cloud") boolean multicast,
+      @CliOption(key = "type", mandatory = false, help = "A @RooCometd type whose channel is observed across the cluster") JavaType type) {
+
+    operations.cluster(url, cloud, multicast);
+    if (type != null) {
+      operations.clusterType(type);
+    }
+  }
+
+  @CliCommand(value = "cometd metrics", help = "Instrument the Bayeux server and @RooCometd publishers over JMX")
+  public void metrics(
+      @CliOption(key = "type", mandatory = false, help = "The @RooCometd type to instrument; all when omitted") JavaType type) {
+    operations.metrics(type);
+  }
+
+  @CliCommand(value = "cometd benchmark", help = "Add JMH benchmarks of the generated publishers")
+  public void benchmark() {
+    operations.benchmark();
+  }
+
+  @CliCommand(value = "cometd loadtest", help = "Generate a BayeuxClient load test of the @RooCometd channels")
+  public void loadTest() {
+    operations.loadTest();
+  }
+
+  /**
+   * Run again after adding @RooCometd types or changing their channel attributes, the configuration is regenerated
+   */
+  @CliCommand(value = "cometd channels", help = "Create and configure the @RooCometd channels at startup")
+  public void channels() {
+    operations.channels();
+  }
+
+  /**
+   * Bridged entities publish after each committed persist or update, never from inside the transaction
+   */
+  @CliCommand(value = "cometd bridge", help = "Stream committed JPA changes of @RooCometd entities to their channels")
+  public void bridge(
+      @CliOption(key = "type", mandatory = false, help = "The @RooCometd entity to bridge; all broadcasting types when omitted") JavaType type,
+      @CliOption(key = "bufferSize", mandatory = false, unspecifiedDefaultValue = "10000", help = "Changes buffered before the overflow strategy applies") int bufferSize,
+      @CliOption(key = "overflow", mandatory = false, unspecifiedDefaultValue = "LATEST", specifiedDefaultValue = "LATEST", help = "Change discarded from a full buffer: DROP the new one or keep the LATEST") CometdOverflow overflow,
+      @CliOption(key = "windowMillis", mandatory = false, unspecifiedDefaultValue = "20", help = "Milliseconds changes are collected for before being published together") long windowMillis) {
+    operations.bridge(type, bufferSize, overflow, windowMillis);
+  }
+
+  @CliCommand(value = "cometd ratelimit", help = "Limit the rate at which each client may publish to @RooCometd channels")
+  public void rateLimit(
+      @CliOption(key = "type", mandatory = false, help = "The @RooCometd type whose channel is limited; all when omitted") JavaType type,
+      @CliOption(key = "rate", mandatory = true, help = "Messages per second per client session, 0 to remove the limit") int rate,
+      @CliOption(key = "burst", mandatory = false, help = "Messages a client session may publish at once; the rate when omitted") Integer burst) {
+    operations.rateLimit(type, rate, burst == null ? rate : burst);
+  }
+
+  /**
+   * Complete the generated CometdSecurityPolicy's authenticate and isPermitted methods; run again to change the
+   * cache settings, the policy itself is kept
+   */
+  @CliCommand(value = "cometd security", help = "Authenticate Cometd sessions at handshake and cache channel permissions")
+  public void security(
+      @CliOption(key = "permissionMillis", mandatory = false, unspecifiedDefaultValue = "60000", help = "Milliseconds a channel permission is remembered; 0 checks every subscribe and publish") long permissionMillis,
+      @CliOption(key = "maxPermissions", mandatory = false, unspecifiedDefaultValue = "10000", help = "Channel permissions remembered; past this the least recently checked one is discarded") int maxPermissions) {
+    operations.security(permissionMillis, maxPermissions);
+  }
+
+  private void putIfSpecified(Map<String, String> initParams, String name, Number value) {
+    if (value != null) {
+      initParams.put(name, value.toString());
+    }
+  }
+
 }
\ No newline at end of file
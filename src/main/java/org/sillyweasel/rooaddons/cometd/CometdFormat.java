@@ -0,0 +1,20 @@
+package org.sillyweasel.rooaddons.cometd;
+
+/**
+ * The payload of the messages published for a {@link RooCometd} type.
+ *
+ * @since 1.1
+ */
+public enum CometdFormat {
+
+  /**
+   * Every published field, by name
+   */
+  MAP,
+
+  /**
+   * The key and the fields changed since the entity was last published, merged in the browser by the
+   * <code>js/cometd-compact.js</code> written by <code>cometd setup</code>
+   */
+  COMPACT
+}
@@ -2,8 +2,14 @@ package org.sillyweasel.rooaddons.cometd;
 
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.springframework.roo.classpath.PhysicalTypeIdentifierNamingUtils;
@@ -13,17 +19,22 @@ import org.springframework.roo.classpath.details.FieldMetadataBuilder;
 import org.springframework.roo.classpath.details.MethodMetadata;
 import org.springframework.roo.classpath.details.MethodMetadataBuilder;
 import org.springframework.roo.classpath.details.annotations.AnnotatedJavaType;
+import org.springframework.roo.classpath.details.annotations.AnnotationMetadata;
 import org.springframework.roo.classpath.details.annotations.AnnotationMetadataBuilder;
 import org.springframework.roo.classpath.itd.AbstractItdTypeDetailsProvidingMetadataItem;
 import org.springframework.roo.classpath.itd.InvocableMemberBodyBuilder;
 import org.springframework.roo.metadata.MetadataIdentificationUtils;
+import org.springframework.roo.model.DataType;
+import org.springframework.roo.model.JavaPackage;
 import org.springframework.roo.model.JavaSymbolName;
 import org.springframework.roo.model.JavaType;
 import org.springframework.roo.project.LogicalPath;
 
 /**
  * This type produces metadata for a new ITD. It uses an {@link ItdTypeDetailsBuilder} provided by 
- * {@link AbstractItdTypeDetailsProvidingMetadataItem} to register a field in the ITD and a new method.
+ * {@link AbstractItdTypeDetailsProvidingMetadataItem} to introduce a batched change publisher into the governor:
+ * a channel constant, a {@link CometdRuntimeTypes#CHANNEL_PUBLISHER} shared by all instances of the type and the
+ * methods used to convert, publish and flush entity changes.
  * 
  * @since 1.1.0
  */
@@ -32,6 +43,24 @@ public class CometdMetadata extends AbstractItdTypeDetailsProvidingMetadataItem
     // Constants
     private static final String PROVIDES_TYPE_STRING = CometdMetadata.class.getName();
     private static final String PROVIDES_TYPE = MetadataIdentificationUtils.create(PROVIDES_TYPE_STRING);
+    private static final String SERVICE_CHANNEL_PREFIX = "/service";
+    private static final JavaType SERVER_SESSION = new JavaType("org.cometd.bayeux.server.ServerSession");
+    private static final JavaType MAP = new JavaType("java.util.Map", 0, DataType.TYPE, null, Arrays.asList(JavaType.STRING, JavaType.OBJECT));
+    private static final JavaType LINKED_HASH_MAP = new JavaType("java.util.LinkedHashMap", 0, DataType.TYPE, null, Arrays.asList(JavaType.STRING, JavaType.OBJECT));
+    private static final JavaSymbolName CHANNEL_FIELD = new JavaSymbolName("COMETD_CHANNEL");
+    private static final JavaSymbolName PUBLISHER_FIELD = new JavaSymbolName("cometdChannelPublisher");
+    private static final JavaType POST_PERSIST = new JavaType("javax.persistence.PostPersist");
+    private static final JavaType POST_UPDATE = new JavaType("javax.persistence.PostUpdate");
+
+    // Fields
+    private final CometdAnnotationValues annotationValues;
+    private final JavaType publisherType;
+    private final JavaType channelPublisherType;
+    private final JavaType channelSettingsType;
+    private final JavaType metricsType;
+    private final JavaType entityEventsType;
+    private final Map<String, MethodMetadata> declaredMethods = new HashMap<String, MethodMetadata>();
+    private final Set<JavaSymbolName> declaredFields = new HashSet<JavaSymbolName>();
 
     public static final String getMetadataIdentiferType() {
         return PROVIDES_TYPE;
@@ -52,85 +81,290 @@ public class CometdMetadata extends AbstractItdTypeDetailsProvidingMetadataItem
     public static boolean isValid(String metadataIdentificationString) {
         return PhysicalTypeIdentifierNamingUtils.isValid(PROVIDES_TYPE_STRING, metadataIdentificationString);
     }
+
+    /**
+     * The key methods are looked up by
+     */
+    private static String getSignature(JavaSymbolName methodName, List<AnnotatedJavaType> parameterTypes) {
+        StringBuilder signature = new StringBuilder(methodName.getSymbolName()).append('(');
+        for (AnnotatedJavaType parameterType : parameterTypes) {
+            signature.append(parameterType.getJavaType().getNameIncludingTypeParameters()).append(',');
+        }
+        return signature.append(')').toString();
+    }
     
-    public CometdMetadata(String identifier, JavaType aspectName, PhysicalTypeMetadata governorPhysicalTypeMetadata) {
+    public CometdMetadata(String identifier, JavaType aspectName, PhysicalTypeMetadata governorPhysicalTypeMetadata, CometdAnnotationValues annotationValues, JavaPackage topLevelPackage) {
         super(identifier, aspectName, governorPhysicalTypeMetadata);
         Validate.isTrue(isValid(identifier), "Metadata identification string '" + identifier + "' does not appear to be a valid");
+        Validate.notNull(annotationValues, "Annotation values required");
+        Validate.notNull(topLevelPackage, "Top level package required");
+        Validate.isTrue(annotationValues.getBatchSize() > 0, "@RooCometd batchSize must be positive on " + destination);
+        Validate.isTrue(annotationValues.getFlushMillis() >= 0, "@RooCometd flushMillis must not be negative on " + destination);
+        Validate.isTrue(!annotationValues.isConflate() || StringUtils.isNotBlank(annotationValues.getConflationKey()),
+            "@RooCometd conflationKey required to conflate " + destination);
+        Validate.isTrue(!isCompact(annotationValues) || !annotationValues.isConflate() && !annotationValues.isService(),
+            "@RooCometd COMPACT format cannot be combined with conflate or service on " + destination);
+        Validate.isTrue(!isCompact(annotationValues) || StringUtils.isNotBlank(annotationValues.getConflationKey()),
+            "@RooCometd conflationKey required for the COMPACT format on " + destination);
+        Validate.isTrue(annotationValues.getHistory() >= 0 && annotationValues.getHistoryMillis() >= 0,
+            "@RooCometd history and historyMillis must not be negative on " + destination);
+        // Service channels have no subscribers, and replayed deltas are meaningless without the values they update
+        Validate.isTrue(annotationValues.getHistory() == 0 || !annotationValues.isService() && !isCompact(annotationValues),
+            "@RooCometd history cannot be combined with service or the COMPACT format on " + destination);
+        // Striped batches bypass the channel, so Oort never sees them
+        Validate.isTrue(!annotationValues.isStriped() || !annotationValues.isService() && !annotationValues.isClustered(),
+            "@RooCometd striped cannot be combined with service or clustered on " + destination);
 
-        // Adding a new sample field definition
-        builder.addField(getSampleField());
-            
-        // Adding a new sample method definition
-        builder.addMethod(getSampleMethod());
+        this.annotationValues = annotationValues;
+        this.publisherType = CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.PUBLISHER);
+        this.channelPublisherType = CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.CHANNEL_PUBLISHER);
+        this.channelSettingsType = CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.CHANNEL_SETTINGS);
+        this.metricsType = CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.METRICS);
+        this.entityEventsType = CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.ENTITY_EVENTS);
+
+        // Index the governor's members once rather than scanning them for each member introduced
+        for (MethodMetadata method : governorTypeDetails.getDeclaredMethods()) {
+            declaredMethods.put(getSignature(method.getMethodName(), method.getParameterTypes()), method);
+        }
+        for (FieldMetadata field : governorTypeDetails.getDeclaredFields()) {
+            declaredFields.add(field.getFieldName());
+        }
+
+        // The channel and its publisher are shared by every instance of the governor
+        addField(getChannelField());
+        addField(getPublisherField());
+
+        addMethod(getToCometdDataMethod());
+        if (annotationValues.isService()) {
+            // Service channels have no subscribers, changes go to the session they are addressed to
+            addMethod(getDeliverChangeMethod());
+        } else {
+            addMethod(getPublishChangeMethod());
+            addMethod(getFlushChangesMethod());
+            if (annotationValues.isBridged()) {
+                addMethod(getBridgeCallbackMethod());
+            }
+        }
         
         // Create a representation of the desired output ITD
         itdTypeDetails = builder.build();
     }
+
+    private void addField(FieldMetadata field) {
+        if (field != null) {
+            builder.addField(field);
+        }
+    }
+
+    private void addMethod(MethodMetadata method) {
+        // Methods already declared by the governor are left to the governor
+        if (method != null && !method.getDeclaredByMetadataId().equals(governorPhysicalTypeMetadata.getId())) {
+            builder.addMethod(method);
+        }
+    }
     
     /**
-     * Create metadata for a field definition. 
+     * The channel changes of the governor are published to, as configured or derived from its simple name
      *
-     * @return a FieldMetadata object
+     * @return a FieldMetadata object, or null if the governor declares the field itself
      */
-    private FieldMetadata getSampleField() {
-        // Note private fields are private to the ITD, not the target type, this is undesirable if a dependent method is pushed in to the target type
-        int modifier = 0;
-        
-        // Using the FieldMetadataBuilder to create the field definition. 
-        final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
-            modifier, // Using package protection rather than private
-            new ArrayList<AnnotationMetadataBuilder>(), // No annotations for this field
-            new JavaSymbolName("sampleField"), // Field name
-            JavaType.STRING); // Field type
-        
-        return fieldBuilder.build(); // Build and return a FieldMetadata instance
+    private FieldMetadata getChannelField() {
+        if (fieldExists(CHANNEL_FIELD)) {
+            return null;
+        }
+        final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL,
+            new ArrayList<AnnotationMetadataBuilder>(), CHANNEL_FIELD, JavaType.STRING);
+        fieldBuilder.setFieldInitializer("\"" + getChannelName() + "\"");
+        return fieldBuilder.build();
     }
-    
-    private MethodMetadata getSampleMethod() {
-        // Specify the desired method name
-        JavaSymbolName methodName = new JavaSymbolName("sampleMethod");
-        
-        // Check if a method with the same signature already exists in the target type
+
+    /**
+     * The batching publisher of the governor's channel. Package protection rather than private, as private fields
+     * are private to the ITD and the publishing methods may be pushed in to the target type.
+     *
+     * @return a FieldMetadata object, or null if the governor declares the field itself
+     */
+    private FieldMetadata getPublisherField() {
+        if (fieldExists(PUBLISHER_FIELD)) {
+            return null;
+        }
+        final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), Modifier.STATIC | Modifier.FINAL,
+            new ArrayList<AnnotationMetadataBuilder>(), PUBLISHER_FIELD, channelPublisherType);
+        fieldBuilder.setFieldInitializer(getSimpleName(publisherType) + ".channel(" + getChannelSettings() + ")");
+        return fieldBuilder.build();
+    }
+
+    /**
+     * Converts the state declared by the governor into the map sent as the data of a Bayeux message
+     */
+    private MethodMetadata getToCometdDataMethod() {
+        JavaSymbolName methodName = new JavaSymbolName("toCometdData");
         final MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
         if (method != null) {
-            // If it already exists, just return the method and omit its generation via the ITD
             return method;
         }
-        
-        // Define method annotations (none in this case)
-        List<AnnotationMetadataBuilder> annotations = new ArrayList<AnnotationMetadataBuilder>();
-        
-        // Define method throws types (none in this case)
-        List<JavaType> throwsTypes = new ArrayList<JavaType>();
-        
-        // Define method parameter types (none in this case)
-        List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
-        
-        // Define method parameter names (none in this case)
-        List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
-        
-        // Create the method body
+
         InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
-        bodyBuilder.appendFormalLine("System.out.println(\"Hello World\");");
-        
-        // Use the MethodMetadataBuilder for easy creation of MethodMetadata
-        MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, JavaType.VOID_PRIMITIVE, parameterTypes, parameterNames, bodyBuilder);
-        methodBuilder.setAnnotations(annotations);
-        methodBuilder.setThrowsTypes(throwsTypes);
-        
-        return methodBuilder.build(); // Build and return a MethodMetadata instance
+        bodyBuilder.appendFormalLine(getSimpleName(MAP) + " data = new " + getSimpleName(LINKED_HASH_MAP) + "();");
+        boolean keyPublished = false;
+        for (FieldMetadata field : getPublishedFields()) {
+            String fieldName = field.getFieldName().getSymbolName();
+            bodyBuilder.appendFormalLine("data.put(\"" + fieldName + "\", this." + fieldName + ");");
+            keyPublished |= fieldName.equals(annotationValues.getConflationKey());
+        }
+        if ((annotationValues.isConflate() || isCompact(annotationValues)) && !keyPublished) {
+            // The key is typically introduced by another ITD, such as the identifier of a JPA entity
+            String key = annotationValues.getConflationKey();
+            bodyBuilder.appendFormalLine("data.put(\"" + key + "\", get" + StringUtils.capitalize(key) + "());");
+        }
+        bodyBuilder.appendFormalLine("return data;");
+
+        return new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, MAP, new ArrayList<AnnotatedJavaType>(), new ArrayList<JavaSymbolName>(), bodyBuilder).build();
+    }
+
+    /**
+     * Queues the current state of this instance on the channel publisher
+     */
+    private MethodMetadata getPublishChangeMethod() {
+        JavaSymbolName methodName = new JavaSymbolName("publishCometdChange");
+        final MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+        if (method != null) {
+            return method;
+        }
+
+        InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+        bodyBuilder.appendFormalLine(PUBLISHER_FIELD.getSymbolName() + ".publish(toCometdData());");
+
+        return new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, JavaType.VOID_PRIMITIVE, new ArrayList<AnnotatedJavaType>(), new ArrayList<JavaSymbolName>(), bodyBuilder).build();
+    }
+
+    /**
+     * Delivers the current state of this instance to a single session on the governor's service channel
+     */
+    private MethodMetadata getDeliverChangeMethod() {
+        JavaSymbolName methodName = new JavaSymbolName("deliverCometdChange");
+        List<AnnotatedJavaType> parameterTypes = AnnotatedJavaType.convertFromJavaTypes(SERVER_SESSION);
+        final MethodMetadata method = methodExists(methodName, parameterTypes);
+        if (method != null) {
+            return method;
+        }
+
+        InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+        bodyBuilder.appendFormalLine(PUBLISHER_FIELD.getSymbolName() + ".deliver(session, toCometdData());");
+
+        return new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, JavaType.VOID_PRIMITIVE, parameterTypes, Arrays.asList(new JavaSymbolName("session")), bodyBuilder).build();
+    }
+
+    /**
+     * Delivers the pending changes of the governor's channel without waiting for a batching threshold
+     */
+    private MethodMetadata getFlushChangesMethod() {
+        JavaSymbolName methodName = new JavaSymbolName("flushCometdChanges");
+        final MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+        if (method != null) {
+            return method;
+        }
+
+        InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+        bodyBuilder.appendFormalLine(PUBLISHER_FIELD.getSymbolName() + ".flush();");
+
+        return new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, JavaType.VOID_PRIMITIVE, new ArrayList<AnnotatedJavaType>(), new ArrayList<JavaSymbolName>(), bodyBuilder).build();
+    }
+
+    /**
+     * Hands committed JPA changes of the governor to the bridge, which publishes them off the committing thread
+     *
+     * @return a MethodMetadata object, or null if the governor declares its own persist or update callbacks
+     */
+    private MethodMetadata getBridgeCallbackMethod() {
+        JavaSymbolName methodName = new JavaSymbolName("onCometdChange");
+        final MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+        if (method != null) {
+            return method;
+        }
+        // JPA allows a single callback per lifecycle event; the governor's own callbacks call the bridge themselves
+        for (MethodMetadata declaredMethod : declaredMethods.values()) {
+            for (AnnotationMetadata annotation : declaredMethod.getAnnotations()) {
+                if (annotation.getAnnotationType().equals(POST_PERSIST) || annotation.getAnnotationType().equals(POST_UPDATE)) {
+                    return null;
+                }
+            }
+        }
+
+        InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+        bodyBuilder.appendFormalLine(getSimpleName(entityEventsType) + ".changed(this);");
+
+        MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, JavaType.VOID_PRIMITIVE, new ArrayList<AnnotatedJavaType>(), new ArrayList<JavaSymbolName>(), bodyBuilder);
+        methodBuilder.addAnnotation(new AnnotationMetadataBuilder(POST_PERSIST));
+        methodBuilder.addAnnotation(new AnnotationMetadataBuilder(POST_UPDATE));
+        return methodBuilder.build();
+    }
+
+    /**
+     * The instance state of the governor; static and transient fields are not published
+     */
+    private List<FieldMetadata> getPublishedFields() {
+        List<FieldMetadata> fields = new ArrayList<FieldMetadata>();
+        for (FieldMetadata field : governorTypeDetails.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifier()) && !Modifier.isTransient(field.getModifier())) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * The expression configuring the channel publisher from the annotation attributes
+     */
+    private String getChannelSettings() {
+        StringBuilder settings = new StringBuilder();
+        settings.append("new ").append(getSimpleName(channelSettingsType)).append("(").append(CHANNEL_FIELD.getSymbolName()).append(")");
+        settings.append(".lazy(").append(annotationValues.isLazy()).append(")");
+        settings.append(".batchSize(").append(annotationValues.getBatchSize()).append(")");
+        settings.append(".flushMillis(").append(annotationValues.getFlushMillis()).append("L)");
+        settings.append(".clustered(").append(annotationValues.isClustered()).append(")");
+        if (annotationValues.isConflate()) {
+            settings.append(".conflationKey(\"").append(annotationValues.getConflationKey()).append("\")");
+        }
+        if (isCompact(annotationValues)) {
+            settings.append(".compactKey(\"").append(annotationValues.getConflationKey()).append("\")");
+        }
+        if (annotationValues.isStriped()) {
+            settings.append(".striped(true)");
+        }
+        if (annotationValues.getHistory() > 0) {
+            settings.append(".history(").append(annotationValues.getHistory()).append(", ").append(annotationValues.getHistoryMillis()).append("L)");
+        }
+        if (annotationValues.isMetrics()) {
+            settings.append(".listener(").append(getSimpleName(metricsType)).append(".channel(").append(CHANNEL_FIELD.getSymbolName()).append("))");
+        }
+        return settings.toString();
+    }
+
+    private static boolean isCompact(CometdAnnotationValues annotationValues) {
+        return annotationValues.getFormat() == CometdFormat.COMPACT;
+    }
+
+    private String getChannelName() {
+        if (StringUtils.isNotBlank(annotationValues.getChannel())) {
+            return annotationValues.getChannel();
+        }
+        String channelName = "/" + StringUtils.uncapitalize(destination.getSimpleTypeName());
+        return annotationValues.isService() ? SERVICE_CHANNEL_PREFIX + channelName : channelName;
+    }
+
+    private String getSimpleName(JavaType type) {
+        // Registers the import on the ITD as a side effect
+        return type.getNameIncludingTypeParameters(false, builder.getImportRegistrationResolver());
+    }
+
+    private boolean fieldExists(JavaSymbolName fieldName) {
+        return declaredFields.contains(fieldName);
     }
         
     private MethodMetadata methodExists(JavaSymbolName methodName, List<AnnotatedJavaType> paramTypes) {
-        // We have no access to method parameter information, so we scan by name alone and treat any match as authoritative
         // We do not scan the superclass, as the caller is expected to know we'll only scan the current class
-        for (MethodMetadata method : governorTypeDetails.getDeclaredMethods()) {
-            if (method.getMethodName().equals(methodName) && method.getParameterTypes().equals(paramTypes)) {
-                // Found a method of the expected name; we won't check method parameters though
-                return method;
-            }
-        }
-        return null;
+        return declaredMethods.get(getSignature(methodName, paramTypes));
     }
     
     // Typically, no changes are required beyond this point
@@ -1,6 +1,7 @@
 package org.sillyweasel.rooaddons.cometd;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.component.ComponentContext;
 import org.springframework.roo.classpath.PhysicalTypeIdentifier;
@@ -8,7 +9,9 @@ import org.springframework.roo.classpath.PhysicalTypeMetadata;
 import org.springframework.roo.classpath.itd.AbstractItdMetadataProvider;
 import org.springframework.roo.classpath.itd.ItdTypeDetailsProvidingMetadataItem;
 import org.springframework.roo.model.JavaType;
+import org.springframework.roo.model.JavaPackage;
 import org.springframework.roo.project.LogicalPath;
+import org.springframework.roo.project.ProjectOperations;
 
 /**
  * Provides {@link CometdMetadata}. This type is called by Roo to retrieve the metadata for this add-on.
@@ -21,6 +24,11 @@ import org.springframework.roo.project.LogicalPath;
 @Service
 public final class CometdMetadataProvider extends AbstractItdMetadataProvider {
 
+    /**
+     * Used to locate the top level package the generated code's support types are installed in
+     */
+    @Reference private ProjectOperations projectOperations;
+
     /**
      * The activate method for this OSGi component, this will be called by the OSGi container upon bundle activation 
      * (result of the 'addon install' command) 
@@ -29,7 +37,7 @@ public final class CometdMetadataProvider extends AbstractItdMetadataProvider {
      */
     protected void activate(ComponentContext context) {
         metadataDependencyRegistry.registerDependency(PhysicalTypeIdentifier.getMetadataIdentiferType(), getProvidesType());
-        addMetadataTrigger(new JavaType(RooCometd.class.getName()));
+        addMetadataTrigger(CometdAnnotationValues.ROO_COMETD);
     }
     
     /**
@@ -40,17 +48,24 @@ public final class CometdMetadataProvider extends AbstractItdMetadataProvider {
      */
     protected void deactivate(ComponentContext context) {
         metadataDependencyRegistry.deregisterDependency(PhysicalTypeIdentifier.getMetadataIdentiferType(), getProvidesType());
-        removeMetadataTrigger(new JavaType(RooCometd.class.getName()));    
+        removeMetadataTrigger(CometdAnnotationValues.ROO_COMETD);    
     }
     
     /**
      * Return an instance of the Metadata offered by this add-on
      */
     protected ItdTypeDetailsProvidingMetadataItem getMetadata(String metadataIdentificationString, JavaType aspectName, PhysicalTypeMetadata governorPhysicalTypeMetadata, String itdFilename) {
-        // Pass dependencies required by the metadata in through its constructor
-        return new CometdMetadata(metadataIdentificationString, aspectName, governorPhysicalTypeMetadata);
+        // The annotation attributes tune the publisher generated for each type
+        CometdAnnotationValues annotationValues = new CometdAnnotationValues(governorPhysicalTypeMetadata);
+        if (!annotationValues.isAnnotationFound()) {
+            return null;
+        }
+
+        // Pass dependencies required by the metadata in through its constructor; Roo leaves an unchanged ITD unwritten
+        JavaPackage topLevelPackage = projectOperations.getTopLevelPackage(CometdMetadata.getPath(metadataIdentificationString).getModule());
+        return new CometdMetadata(metadataIdentificationString, aspectName, governorPhysicalTypeMetadata, annotationValues, topLevelPackage);
     }
-    
+
     /**
      * Define the unique ITD file name extension, here the resulting file name will be **_ROO_Cometd.aj
      */
@@ -71,4 +86,5 @@ public final class CometdMetadataProvider extends AbstractItdMetadataProvider {
     public String getProvidesType() {
         return CometdMetadata.getMetadataIdentiferType();
     }
+
 }
\ No newline at end of file
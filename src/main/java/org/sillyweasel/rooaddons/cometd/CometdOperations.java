@@ -1,5 +1,8 @@
 package org.sillyweasel.rooaddons.cometd;
 
+import java.util.Map;
+
+import org.springframework.roo.model.JavaPackage;
 import org.springframework.roo.model.JavaType;
 
 /**
@@ -16,17 +19,111 @@ public interface CometdOperations {
     void annotateType(JavaType type);
     
     /**
-     * Annotate all Java types with the trigger of this add-on
+     * Annotate all @RooJavaBean types with the trigger of this add-on, computing every change before writing any
+     *
+     * @param javaPackage only annotate types in this package and its sub-packages, or null for all types
      */
-    void annotateAll();
+    void annotateAll(JavaPackage javaPackage);
     
     /**
-     * Setup all add-on artifacts (dependencies in this case)
+     * Setup all add-on artifacts (dependencies, web.xml servlets and the support types used by generated publishers)
+     *
+     * @param initParams the init-params of the CometD servlet, replacing any existing values of the same name; the
+     * browser prefers WebSocket unless <code>allowedTransports</code> excludes it
+     * @param jackson whether to serialise with a generated Jackson based JSON context instead of the default parser
+     * @param ack whether to enable the acknowledged messages extension, for redelivery without a reconnect
+     * @param compression whether to gzip long-polling responses
+     * @param executorParams the <code>executor.*</code> init-params of the initializer, configuring the executor
+     * CometdService handlers run on; absent values keep the executor's defaults
+     */
+    void setup(Map<String, String> initParams, boolean jackson, boolean ack, boolean compression, Map<String, String> executorParams);
+
+    /**
+     * Setup all add-on artifacts in every module with a web.xml, writing every change once all of their web.xml files
+     * are configured. The support types are installed in the module declaring the @RooCometd types, if any.
+     *
+     * @see #setup(Map, boolean, boolean, boolean, Map)
      */
-    void setup();
+    void setupAllWebModules(Map<String, String> initParams, boolean jackson, boolean ack, boolean compression, Map<String, String> executorParams);
 
     void remove();
 
+    /**
+     * Clusters the cometd servlet with Oort and Seti
+     *
+     * @param url the default URL of this node's cometd servlet, overridden per node by the
+     * <code>cometd.oort.url</code> system property
+     * @param cloud comma separated URLs of the other nodes, for static configuration
+     * @param multicast whether nodes discover each other by multicast instead of a static cloud
+     */
+    void cluster(String url, String cloud, boolean multicast);
+
+    /**
+     * Marks the channel of a @RooCometd type as observed by Oort, so its broadcasts reach every node
+     */
+    void clusterType(JavaType type);
+
+    /**
+     * Installs JMX instrumentation of the BayeuxServer and wires the counters into generated publishers
+     *
+     * @param type the @RooCometd type to instrument, or null for every @RooCometd type
+     */
+    void metrics(JavaType type);
+
+    /**
+     * Adds JMH and benchmarks of the generated publishers, run in-process with <code>mvn test-compile exec:exec</code>
+     */
+    void benchmark();
+
+    /**
+     * Generates a load test main running the web application in an embedded Jetty against many WebSocket clients
+     */
+    void loadTest();
+
+    /**
+     * Generates the startup configuration of the @RooCometd channels: their lazy and persistent flags, their
+     * authorizers, and their creation before the first subscriber
+     */
+    void channels();
+
+    /**
+     * Generates the bridge streaming committed JPA changes of @RooCometd entities into their publishers
+     *
+     * @param type the @RooCometd type to bridge, or null for every broadcasting @RooCometd type
+     * @param bufferSize the number of changes buffered before the overflow strategy applies
+     * @param overflow the change discarded when the buffer is full
+     * @param windowMillis the time changes are collected for before being published together
+     */
+    void bridge(JavaType type, int bufferSize, CometdOverflow overflow, long windowMillis);
+
+    /**
+     * Limits the rate at which each client session may publish to the channel of @RooCometd types, through a
+     * generated BayeuxServer extension
+     *
+     * @param type the @RooCometd type to limit, or null for every @RooCometd type
+     * @param rate messages per second per session, 0 to remove the limit
+     * @param burst messages a session may publish at once
+     */
+    void rateLimit(JavaType type, int rate, int burst);
+
+    /**
+     * Generates a security policy authenticating each session once at handshake and remembering the permissions of
+     * each principal per channel, and installs it on the Bayeux server
+     *
+     * @param permissionMillis how long a permission is remembered before the user store is asked again
+     * @param maxPermissions the permissions remembered before the least recently checked one is discarded
+     */
+    void security(long permissionMillis, int maxPermissions);
+
+  boolean isAnnotateAvailable();
   boolean isSetupAvailable();
   boolean isRemoveAvailable();
+  boolean isClusterAvailable();
+  boolean isMetricsAvailable();
+  boolean isBenchmarkAvailable();
+  boolean isLoadTestAvailable();
+  boolean isChannelsAvailable();
+  boolean isBridgeAvailable();
+  boolean isRateLimitAvailable();
+  boolean isSecurityAvailable();
 }
\ No newline at end of file
@@ -1,25 +1,46 @@
 package org.sillyweasel.rooaddons.cometd;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.springframework.roo.classpath.PhysicalTypeIdentifier;
 import org.springframework.roo.classpath.TypeLocationService;
 import org.springframework.roo.classpath.TypeManagementService;
 import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetails;
 import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetailsBuilder;
 import org.springframework.roo.classpath.details.MemberFindingUtils;
+import org.springframework.roo.classpath.details.annotations.AnnotationAttributeValue;
+import org.springframework.roo.classpath.details.annotations.AnnotationMetadata;
 import org.springframework.roo.classpath.details.annotations.AnnotationMetadataBuilder;
+import org.springframework.roo.model.JavaPackage;
+import org.springframework.roo.model.JavaSymbolName;
 import org.springframework.roo.model.JavaType;
 import org.springframework.roo.process.manager.FileManager;
 import org.springframework.roo.project.*;
+import org.springframework.roo.support.logging.HandlerUtils;
 import org.springframework.roo.support.util.WebXmlUtils;
 import org.springframework.roo.support.util.XmlUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * Implementation of operations this add-on offers.
@@ -31,6 +52,35 @@ import java.util.List;
 public class CometdOperationsImpl implements CometdOperations {
 
   private static final String WEB_XML = "WEB-INF/web.xml";
+  private static final String INITIALIZER_SERVLET_NAME = "cometdInitializer";
+  private static final String GZIP_FILTER_NAME = "cometd-gzip";
+  private static final String CLIENT_SCRIPT = "js/cometd-setup.js";
+  private static final String CLIENT_SCRIPT_TEMPLATE = "cometd-setup-template.js";
+  private static final String COMPACT_SCRIPT = "js/cometd-compact.js";
+  private static final String COMPACT_SCRIPT_TEMPLATE = "cometd-compact-template.js";
+  private static final String ENTITY_FIELDS_TOKEN = "__ENTITY_FIELDS__";
+  private static final String ENTITY_SUBSCRIPTIONS_TOKEN = "__ENTITY_SUBSCRIPTIONS__";
+  private static final String ENTITY_BENCHMARKS_TOKEN = "__ENTITY_BENCHMARKS__";
+  private static final String CHANNELS_TOKEN = "__CHANNELS__";
+  private static final String ENTITY_SNAPSHOTS_TOKEN = "__ENTITY_SNAPSHOTS__";
+  private static final String LIMITS_TOKEN = "__LIMITS__";
+  private static final String CLUSTERED_CHANNELS_TOKEN = "__CLUSTERED_CHANNELS__";
+  private static final String[] RUNTIME_TYPES = {
+      CometdRuntimeTypes.INITIALIZER, CometdRuntimeTypes.PUBLISHER, CometdRuntimeTypes.CHANNEL_PUBLISHER,
+      CometdRuntimeTypes.CHANNEL_SETTINGS, CometdRuntimeTypes.CONFLATER, CometdRuntimeTypes.SERVICE_EXECUTOR,
+      CometdRuntimeTypes.SERVICE, CometdRuntimeTypes.COMPACT_ENCODER, CometdRuntimeTypes.HISTORY,
+      CometdRuntimeTypes.FAN_OUT, CometdRuntimeTypes.SECURITY_POLICY };
+  private static final String OORT_SERVLET_NAME = "oort";
+  private static final String SETI_SERVLET_NAME = "seti";
+  private static final String CLUSTER_INITIALIZER_SERVLET_NAME = "cometdClusterInitializer";
+  private static final String METRICS_SERVLET_NAME = "cometdMetrics";
+  private static final String CHANNELS_SERVLET_NAME = "cometdChannels";
+  private static final String[] METRICS_TYPES = {
+      CometdRuntimeTypes.METRICS, CometdRuntimeTypes.METRICS_MBEAN, CometdRuntimeTypes.CHANNEL_METRICS,
+      CometdRuntimeTypes.CHANNEL_METRICS_MBEAN, CometdRuntimeTypes.METRICS_INITIALIZER };
+  private static final String OORT_URL_PROPERTY = "cometd.oort.url";
+  private static final JavaType ROO_JAVA_BEAN = new JavaType("org.springframework.roo.addon.javabean.RooJavaBean");
+  private static final Logger LOGGER = HandlerUtils.getLogger(CometdOperationsImpl.class);
 
 
   @Reference
@@ -58,6 +108,23 @@ public class CometdOperationsImpl implements CometdOperations {
   @Reference
   private TypeManagementService typeManagementService;
 
+  /**
+   * configuration.xml and the templates only change with the bundle, so they are read once per activation
+   */
+  private volatile Element configuration;
+  private final ConcurrentMap<String, List<Element>> configurationElements = new ConcurrentHashMap<String, List<Element>>();
+  private final ConcurrentMap<String, String> templates = new ConcurrentHashMap<String, String>();
+
+  protected void activate(ComponentContext context) {
+    configuration = XmlUtils.getConfiguration(getClass());
+  }
+
+  protected void deactivate(ComponentContext context) {
+    configuration = null;
+    configurationElements.clear();
+    templates.clear();
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -66,10 +133,46 @@ public class CometdOperationsImpl implements CometdOperations {
     return true;
   }
 
+  public boolean isAnnotateAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
   public boolean isRemoveAvailable() {
     return true;
   }
 
+  public boolean isClusterAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
+  public boolean isMetricsAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
+  public boolean isBenchmarkAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
+  public boolean isLoadTestAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
+  public boolean isChannelsAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
+  public boolean isBridgeAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
+  public boolean isRateLimitAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
+  public boolean isSecurityAvailable() {
+    return projectOperations.isFocusedProjectAvailable();
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -81,44 +184,328 @@ public class CometdOperationsImpl implements CometdOperations {
     ClassOrInterfaceTypeDetails existing = typeLocationService.getTypeDetails(javaType);
 
     // Test if the annotation already exists on the target type
-    if (existing != null && MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), new JavaType(RooCometd.class.getName())) == null) {
-      ClassOrInterfaceTypeDetailsBuilder classOrInterfaceTypeDetailsBuilder = new ClassOrInterfaceTypeDetailsBuilder(existing);
+    if (existing != null && !isAnnotated(existing)) {
+      // Save changes to disk
+      typeManagementService.createOrUpdateTypeOnDisk(annotate(existing));
+      installRuntimeModule(getModuleName(existing));
+    }
+  }
 
-      // Create JavaType instance for the add-ons trigger annotation
-      JavaType rooRooCometd = new JavaType(RooCometd.class.getName());
+  /**
+   * {@inheritDoc}
+   */
+  public void annotateAll(JavaPackage javaPackage) {
+    // The scan returns the type details directly, sparing a lookup per type
+    Set<ClassOrInterfaceTypeDetails> candidates = typeLocationService.findClassesOrInterfaceDetailsWithAnnotation(ROO_JAVA_BEAN);
 
-      // Create Annotation metadata
-      AnnotationMetadataBuilder annotationBuilder = new AnnotationMetadataBuilder(rooRooCometd);
+    // Work out every change before writing any, skipping types already annotated without building them
+    List<ClassOrInterfaceTypeDetails> changes = new ArrayList<ClassOrInterfaceTypeDetails>();
+    for (ClassOrInterfaceTypeDetails candidate : candidates) {
+      if (isInPackage(candidate.getName(), javaPackage) && !isAnnotated(candidate)) {
+        changes.add(annotate(candidate));
+      }
+    }
 
-      // Add annotation to target type
-      classOrInterfaceTypeDetailsBuilder.addAnnotation(annotationBuilder.build());
+    // Roo defers the resulting file and metadata events until the command completes
+    Set<String> moduleNames = new HashSet<String>();
+    for (ClassOrInterfaceTypeDetails change : changes) {
+      typeManagementService.createOrUpdateTypeOnDisk(change);
+      moduleNames.add(getModuleName(change));
+    }
+    for (String moduleName : moduleNames) {
+      installRuntimeModule(moduleName);
+    }
+    LOGGER.info("Annotated " + changes.size() + " of " + candidates.size() + " @RooJavaBean types"
+        + (javaPackage == null ? "" : " in " + javaPackage.getFullyQualifiedPackageName()));
+  }
 
-      // Save changes to disk
-      typeManagementService.createOrUpdateTypeOnDisk(classOrInterfaceTypeDetailsBuilder.build());
+  private String getModuleName(ClassOrInterfaceTypeDetails details) {
+    return PhysicalTypeIdentifier.getPath(details.getDeclaredByMetadataId()).getModule();
+  }
+
+  /**
+   * Installs the runtime types the ITDs of a module's @RooCometd types refer to, with the dependencies they compile
+   * against unless the module is a web module, which gets them from setup
+   */
+  private void installRuntimeModule(String moduleName) {
+    installRuntimeTypes(moduleName);
+    if (fileManager.exists(getWebXmlPath(moduleName))) {
+      return;
     }
+    relocateWebModules(moduleName);
+    projectOperations.addDependencies(moduleName, getDependencies("/configuration/maven/dependencies/dependency[not(type = 'war')]"));
+    // the initializer is a servlet, provided by the container the web module is deployed to
+    projectOperations.addDependencies(moduleName, getDependencies("/configuration/servlet/dependencies/dependency"));
   }
 
   /**
-   * {@inheritDoc}
+   * Points the web.xml of every web module set up before the @RooCometd types existed, which starts the runtime types
+   * in its own package, at those of the runtime module instead, so the copy the ITDs publish through is the one
+   * started
+   */
+  private void relocateWebModules(String runtimeModuleName) {
+    JavaPackage runtimePackage = projectOperations.getTopLevelPackage(runtimeModuleName);
+    for (String moduleName : projectOperations.getModuleNames()) {
+      String webXmlPath = getWebXmlPath(moduleName);
+      if (moduleName.equals(runtimeModuleName) || !fileManager.exists(webXmlPath)) {
+        continue;
+      }
+      String contents = readFile(webXmlPath);
+      String relocated = relocate(contents, projectOperations.getTopLevelPackage(moduleName), runtimePackage);
+      if (!relocated.equals(contents)) {
+        fileManager.createOrUpdateTextFileIfRequired(webXmlPath, relocated, true);
+        LOGGER.info((StringUtils.isBlank(moduleName) ? "(root)" : moduleName) + ": web.xml now starts the cometd types of "
+            + CometdRuntimeTypes.getPackageName(runtimePackage) + ", those in " + CometdRuntimeTypes.getPackageName(
+            projectOperations.getTopLevelPackage(moduleName)) + " are no longer used");
+      }
+    }
+  }
+
+  /**
+   * @return the web.xml contents with the runtime type class names of one package replaced by those of another
+   */
+  private String relocate(String webXmlContents, JavaPackage from, JavaPackage to) {
+    String fromPackageName = CometdRuntimeTypes.getPackageName(from);
+    String toPackageName = CometdRuntimeTypes.getPackageName(to);
+    return fromPackageName.equals(toPackageName) ? webXmlContents
+        : webXmlContents.replace(fromPackageName + ".", toPackageName + ".");
+  }
+
+  private String readFile(String path) {
+    InputStream inputStream = fileManager.getInputStream(path);
+    try {
+      Scanner scanner = new Scanner(inputStream, "UTF-8").useDelimiter("\\A");
+      return scanner.hasNext() ? scanner.next() : "";
+    } finally {
+      try {
+        inputStream.close();
+      } catch (IOException ignored) {
+        // nothing read is lost
+      }
+    }
+  }
+
+  private boolean isAnnotated(ClassOrInterfaceTypeDetails details) {
+    return MemberFindingUtils.getAnnotationOfType(details.getAnnotations(), CometdAnnotationValues.ROO_COMETD) != null;
+  }
+
+  private ClassOrInterfaceTypeDetails annotate(ClassOrInterfaceTypeDetails existing) {
+    ClassOrInterfaceTypeDetailsBuilder classOrInterfaceTypeDetailsBuilder = new ClassOrInterfaceTypeDetailsBuilder(existing);
+    classOrInterfaceTypeDetailsBuilder.addAnnotation(new AnnotationMetadataBuilder(CometdAnnotationValues.ROO_COMETD).build());
+    return classOrInterfaceTypeDetailsBuilder.build();
+  }
+
+  /**
+   * @return whether the type is in the package or one of its sub-packages; always true without a package
    */
-  public void annotateAll() {
-    // Use the TypeLocationService to scan project for all types with a specific annotation
-    for (JavaType type : typeLocationService.findTypesWithAnnotation(new JavaType("org.springframework.roo.addon.javabean.RooJavaBean"))) {
-      annotateType(type);
+  private boolean isInPackage(JavaType type, JavaPackage javaPackage) {
+    if (javaPackage == null) {
+      return true;
     }
+    String packageName = type.getPackage().getFullyQualifiedPackageName();
+    String filter = javaPackage.getFullyQualifiedPackageName();
+    return packageName.equals(filter) || packageName.startsWith(filter + ".");
   }
 
   /**
    * {@inheritDoc}
    */
-  public void setup() {
+  public void setup(Map<String, String> initParams, boolean jackson, boolean ack, boolean compression, Map<String, String> executorParams) {
 
     // shamelessly lifted from the controller add-on
     // see WebMvcOperationsImpl.java
     Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
         "Project metadata required");
 
+    setup(Collections.singletonList(projectOperations.getFocusedModuleName()), initParams, jackson, ack, compression, executorParams);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void setupAllWebModules(Map<String, String> initParams, boolean jackson, boolean ack, boolean compression, Map<String, String> executorParams) {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
+
+    List<String> moduleNames = new ArrayList<String>();
+    for (String moduleName : projectOperations.getModuleNames()) {
+      if (fileManager.exists(getWebXmlPath(moduleName))) {
+        moduleNames.add(moduleName);
+      }
+    }
+    Validate.notEmpty(moduleNames, "No module has a " + WEB_XML);
+
+    setup(moduleNames, initParams, jackson, ack, compression, executorParams);
+  }
+
+  /**
+   * Configures the web.xml of each module, then writes every change in one pass, so nothing is written unless every
+   * web.xml could be configured.
+   */
+  private void setup(List<String> moduleNames, Map<String, String> initParams, boolean jackson, boolean ack,
+                     boolean compression, Map<String, String> executorParams) {
+    String runtimeModuleName = getRuntimeModuleName();
+
     // Verify that the web.xml already exists
+    final List<ModuleSetup> modules = new ArrayList<ModuleSetup>();
+    for (String moduleName : moduleNames) {
+      final String webXmlPath = getWebXmlPath(moduleName);
+      Validate.isTrue(fileManager.exists(webXmlPath), "'" + webXmlPath
+          + "' does not exist");
+      modules.add(new ModuleSetup(moduleName, webXmlPath, XmlUtils.readXml(fileManager
+          .getInputStream(webXmlPath)), runtimeModuleName == null ? moduleName : runtimeModuleName));
+    }
+
+    for (ModuleSetup module : modules) {
+      long start = System.nanoTime();
+      JavaPackage runtimePackage = projectOperations.getTopLevelPackage(module.runtimeModuleName);
+      configureWebXml(module.document, runtimePackage, initParams, jackson,
+          ack, compression, executorParams);
+      // servlets added by other commands before the @RooCometd types moved out of the web module
+      module.webXmlContents = relocate(XmlUtils.nodeToString(module.document),
+          projectOperations.getTopLevelPackage(module.moduleName), runtimePackage);
+      module.webXmlNanos = System.nanoTime() - start;
+    }
+
+    // the Maven changes are the same for every module
+    List<Dependency> dependencies = getDependencies("/configuration/maven/dependencies/dependency");
+    if (jackson) {
+      dependencies.addAll(getDependencies("/configuration/jackson/dependencies/dependency"));
+    }
+    List<Plugin> plugins = getPlugins("/configuration/maven/build/plugins/plugin");
+    String allowedTransports = initParams.get("allowedTransports");
+    boolean websocket = allowedTransports == null
+        || Arrays.asList(allowedTransports.split(",")).contains(CometdTransport.WEBSOCKET.getTransportName());
+
+    Set<String> runtimeModuleNames = new HashSet<String>();
+    for (ModuleSetup module : modules) {
+      long start = System.nanoTime();
+      String moduleName = module.moduleName;
+      fileManager.createOrUpdateTextFileIfRequired(module.webXmlPath,
+          module.webXmlContents, true);
+
+      if (runtimeModuleNames.add(module.runtimeModuleName)) {
+        installRuntimeModule(module.runtimeModuleName);
+        if (jackson) {
+          installJacksonContexts(module.runtimeModuleName);
+          if (!module.runtimeModuleName.equals(moduleName)) {
+            projectOperations.addDependencies(module.runtimeModuleName, getDependencies("/configuration/jackson/dependencies/dependency"));
+          }
+        }
+      }
+      installClientScript(moduleName, ack, websocket);
+
+      projectOperations.addDependencies(moduleName, dependencies);
+
+      // search for and remove existing plugin for war plugin - should be JIRA, but Roo won't overwrite an existing one
+      // and fails silently. Should have a MUTABLE set of Maven objects, and they should allow an update of a plugin.
+      Plugin warPlugin = new Plugin("org.apache.maven.plugins", "maven-war-plugin", "2.1.1");
+
+      if (projectOperations.getPomFromModuleName(moduleName).isPluginRegistered(warPlugin.getGAV())) {
+        projectOperations.removeBuildPlugin(moduleName, warPlugin);
+      }
+
+      // now, add back in the plugins.
+      projectOperations.addBuildPlugins(moduleName, plugins);
+
+      if (modules.size() > 1) {
+        LOGGER.info((StringUtils.isBlank(moduleName) ? "(root)" : moduleName) + ": web.xml "
+            + TimeUnit.NANOSECONDS.toMillis(module.webXmlNanos) + " ms, project "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+      }
+    }
+  }
+
+  /**
+   * The ITDs of @RooCometd types resolve the runtime types in the top level package of their own module, so the
+   * runtime types are installed there, and web modules start them from there, rather than in each web module.
+   *
+   * @return the module declaring the @RooCometd types, or null if there are none yet
+   */
+  private String getRuntimeModuleName() {
+    Set<String> moduleNames = new HashSet<String>();
+    for (JavaType type : typeLocationService.findTypesWithAnnotation(CometdAnnotationValues.ROO_COMETD)) {
+      moduleNames.add(getModuleName(typeLocationService.getTypeDetails(type)));
+    }
+    // each module would get its own CometdPublisher, and a web module can only start one
+    Validate.isTrue(moduleNames.size() <= 1, "@RooCometd types are declared in several modules " + moduleNames
+        + ", they must all be in one module");
+    return moduleNames.isEmpty() ? null : moduleNames.iterator().next();
+  }
+
+  /**
+   * Adds the cometd servlet, its filters and the initializer to a web.xml
+   *
+   * @param topLevelPackage the top level package the runtime types are installed in
+   */
+  private void configureWebXml(Document document, JavaPackage topLevelPackage, Map<String, String> initParams, boolean jackson,
+                               boolean ack, boolean compression, Map<String, String> executorParams) {
+    // indexed on first lookup, once the WebXmlUtils changes below are made
+    final CometdWebXml webXml = new CometdWebXml(document);
+
+    // now we have xml in memory, manipulate...
+
+    setVersion(document, "3.0");
+
+    // add servlets and params for cometd
+    WebXmlUtils.addServlet("cometd", "org.cometd.server.CometdServlet",
+        "/cometd/*", 1,
+        document, null);
+
+    WebXmlUtils.addFilter("cross-origin", "org.eclipse.jetty.servlets.CrossOriginFilter",
+        "/cometd/*", document, null);
+
+    // WebSocket frames are deflated by Jetty when the browser negotiates it, this covers the long-polling fallback
+    if (compression) {
+      WebXmlUtils.addFilter(GZIP_FILTER_NAME, "org.eclipse.jetty.servlets.GzipFilter",
+          "/cometd/*", document, null,
+          new WebXmlUtils.WebXmlParam("mimeTypes", "application/json"));
+    }
+
+    // a suspended long-poll only releases its thread when the servlet and every filter before it support async,
+    // including the application's own filters mapped to /*, such as Roo's character encoding filter
+    Element servlet = webXml.getServletByClass("org.cometd.server.CometdServlet");
+    setAsyncSupported(document, servlet);
+    for (Element filter : webXml.getFiltersCovering(CometdWebXml.getChildText(servlet, "servlet-name"), "/cometd/")) {
+      if (!"true".equals(CometdWebXml.getChildText(filter, "async-supported"))) {
+        LOGGER.info("Filter '" + CometdWebXml.getChildText(filter, "filter-name") + "' is mapped to the cometd servlet, marked async-supported");
+      }
+      setAsyncSupported(document, filter);
+    }
+
+    // tuning params are set directly so that re-running setup with another profile updates them in place
+    setInitParam(document, servlet, "transports", "org.cometd.websocket.server.WebSocketTransport");
+    for (Map.Entry<String, String> initParam : initParams.entrySet()) {
+      setInitParam(document, servlet, initParam.getKey(), initParam.getValue());
+    }
+    if (jackson) {
+      setInitParam(document, servlet, "jsonContext",
+          CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.JACKSON_SERVER_CONTEXT).getFullyQualifiedTypeName());
+    }
+
+    // the initializer hands the BayeuxServer to the generated publishers once the cometd servlet has started
+    Element initializer = addStartupServlet(webXml, INITIALIZER_SERVLET_NAME,
+        CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.INITIALIZER).getFullyQualifiedTypeName(), 2);
+    if (ack) {
+      addExtension(document, initializer, "org.cometd.server.ext.AcknowledgedMessagesExtension");
+    }
+    for (Map.Entry<String, String> executorParam : executorParams.entrySet()) {
+      setInitParam(document, initializer, executorParam.getKey(), executorParam.getValue());
+    }
+  }
+
+  private String getWebXmlPath(String moduleName) {
+    return pathResolver.getIdentifier(Path.SRC_MAIN_WEBAPP.getModulePathId(moduleName), WEB_XML);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void cluster(String url, String cloud, boolean multicast) {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
+    Validate.notBlank(url, "URL of this node's cometd servlet required");
+
     final String webXmlPath = pathResolver.getFocusedIdentifier(
         Path.SRC_MAIN_WEBAPP, WEB_XML);
     Validate.isTrue(fileManager.exists(webXmlPath), "'" + webXmlPath
@@ -126,81 +513,304 @@ public class CometdOperationsImpl implements CometdOperations {
 
     final Document document = XmlUtils.readXml(fileManager
         .getInputStream(webXmlPath));
+    final CometdWebXml webXml = new CometdWebXml(document);
+    Validate.notNull(webXml.getServletByClass("org.cometd.server.CometdServlet"),
+        "The cometd servlet is not configured, run 'cometd setup' first");
 
-    // now we have xml in memory, manipulate...
+    JavaPackage topLevelPackage = getTopLevelPackage();
+    String configServlet = multicast ? CometdRuntimeTypes.OORT_MULTICAST_CONFIG_SERVLET : CometdRuntimeTypes.OORT_STATIC_CONFIG_SERVLET;
 
-    document.getDocumentElement().setAttribute("version", "3.0");
+    // each node overrides the url with a system property, so several nodes can run from the same war
+    Element oort = addStartupServlet(webXml, OORT_SERVLET_NAME,
+        CometdRuntimeTypes.getType(topLevelPackage, configServlet).getFullyQualifiedTypeName(), 2);
+    setInitParam(document, oort, "oort.url", "${" + OORT_URL_PROPERTY + ":" + url + "}");
+    if (!multicast && StringUtils.isNotBlank(cloud)) {
+      setInitParam(document, oort, "oort.cloud", cloud);
+    }
 
-    // add servlets and params for cometd
+    addStartupServlet(webXml, SETI_SERVLET_NAME, "org.cometd.oort.SetiServlet", 3);
+    addStartupServlet(webXml, CLUSTER_INITIALIZER_SERVLET_NAME,
+        CometdRuntimeTypes.getType(topLevelPackage, CometdRuntimeTypes.CLUSTER_INITIALIZER).getFullyQualifiedTypeName(), 4);
 
-    WebXmlUtils.addServlet("cometd", "org.cometd.server.CometdServlet",
-        "/cometd/*", 1,
-        document, null,
-        new WebXmlUtils.WebXmlParam("timeout", "60000"),
-        new WebXmlUtils.WebXmlParam("logLevel", "3"),
-        new WebXmlUtils.WebXmlParam("transports", "org.cometd.websocket.server.WebSocketTransport"));
+    fileManager.createOrUpdateTextFileIfRequired(webXmlPath,
+        XmlUtils.nodeToString(document), true);
 
-    WebXmlUtils.addFilter("cross-origin", "org.eclipse.jetty.servlets.CrossOriginFilter",
-        "/cometd/*", document, null);
+    installRuntimeType(CometdRuntimeTypes.CLUSTER_CONFIG, Collections.<String, String>emptyMap(), false);
+    installRuntimeType(configServlet, Collections.<String, String>emptyMap(), false);
+    installClusterInitializer(null);
 
+    // the configuration servlets are compiled with the runtime types, the web module gets them from there
+    projectOperations.addDependencies(getRuntimeModule(),
+        getDependencies("/configuration/oort/dependencies/dependency"));
+  }
 
-    // fixup servlet for async-supported
-    Element servlet = XmlUtils.findFirstElement("//servlet-class[.='org.cometd.server.CometdServlet']/..", document);
-    servlet.appendChild(getAsyncTag(document, servlet));
+  /**
+   * {@inheritDoc}
+   */
+  public void clusterType(JavaType javaType) {
+    enableAttribute(javaType, "clustered");
 
-    // fixup filter for async-supported
-    Element filter = XmlUtils.findFirstElement("//filter-class[.='org.eclipse.jetty.servlets.CrossOriginFilter']/..", document);
-    filter.appendChild(getAsyncTag(document, filter));
+    // the initializer only exists once the cluster is set up, which may be later
+    final String webXmlPath = pathResolver.getFocusedIdentifier(
+        Path.SRC_MAIN_WEBAPP, WEB_XML);
+    if (fileManager.exists(webXmlPath) && new CometdWebXml(XmlUtils.readXml(fileManager
+        .getInputStream(webXmlPath))).getServletByName(CLUSTER_INITIALIZER_SERVLET_NAME) != null) {
+      installClusterInitializer(javaType);
+    }
+  }
+
+  /**
+   * Writes the cluster initializer observing the channel of every clustered @RooCometd type
+   *
+   * @param clusteredType a type just made clustered, whose annotation is not read back, or null
+   */
+  private void installClusterInitializer(JavaType clusteredType) {
+    StringBuilder channels = new StringBuilder();
+    for (JavaType type : typeLocationService.findTypesWithAnnotation(CometdAnnotationValues.ROO_COMETD)) {
+      if (type.equals(clusteredType) || isAttributeSet(type, "clustered")) {
+        channels.append("\n        oort.observeChannel(").append(type.getFullyQualifiedTypeName()).append(".COMETD_CHANNEL);");
+      }
+    }
+    installRuntimeType(CometdRuntimeTypes.CLUSTER_INITIALIZER, Collections.singletonMap(CLUSTERED_CHANNELS_TOKEN, channels.toString()), true);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void metrics(JavaType javaType) {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
+
+    final String webXmlPath = pathResolver.getFocusedIdentifier(
+        Path.SRC_MAIN_WEBAPP, WEB_XML);
+    Validate.isTrue(fileManager.exists(webXmlPath), "'" + webXmlPath
+        + "' does not exist");
+
+    final Document document = XmlUtils.readXml(fileManager
+        .getInputStream(webXmlPath));
+    final CometdWebXml webXml = new CometdWebXml(document);
+    Validate.notNull(webXml.getServletByClass("org.cometd.server.CometdServlet"),
+        "The cometd servlet is not configured, run 'cometd setup' first");
+
+    addStartupServlet(webXml, METRICS_SERVLET_NAME,
+        CometdRuntimeTypes.getType(getTopLevelPackage(), CometdRuntimeTypes.METRICS_INITIALIZER).getFullyQualifiedTypeName(), 2);
 
     fileManager.createOrUpdateTextFileIfRequired(webXmlPath,
         XmlUtils.nodeToString(document), true);
 
-    List<Dependency> dependencies = new ArrayList<Dependency>();
+    for (String simpleTypeName : METRICS_TYPES) {
+      installRuntimeType(simpleTypeName, Collections.<String, String>emptyMap(), false);
+    }
 
-    for (Element dependencyElement : XmlUtils.findElements("/configuration/maven/dependencies/dependency", XmlUtils.getConfiguration(getClass()))) {
-      dependencies.add(new Dependency(dependencyElement));
+    if (javaType != null) {
+      enableAttribute(javaType, "metrics");
+    } else {
+      for (JavaType type : typeLocationService.findTypesWithAnnotation(CometdAnnotationValues.ROO_COMETD)) {
+        enableAttribute(type, "metrics");
+      }
+    }
+  }
 
+  /**
+   * {@inheritDoc}
+   */
+  public void benchmark() {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
+
+    // one benchmark per broadcasting type, through the publishCometdChange method generated into it
+    StringBuilder fields = new StringBuilder();
+    StringBuilder subscriptions = new StringBuilder();
+    StringBuilder benchmarks = new StringBuilder();
+    Set<String> names = new HashSet<String>();
+    for (JavaType type : getBroadcastingTypes()) {
+      String typeName = type.getFullyQualifiedTypeName();
+      // types of the same simple name in different packages get numbered
+      String name = type.getSimpleTypeName();
+      for (int i = 2; !names.add(name); i++) {
+        name = type.getSimpleTypeName() + i;
+      }
+      String fieldName = StringUtils.uncapitalize(name);
+      fields.append("\n    private final ").append(typeName).append(" ").append(fieldName)
+          .append(" = new ").append(typeName).append("();");
+      subscriptions.append("\n        subscribe(").append(typeName).append(".COMETD_CHANNEL);");
+      benchmarks.append("\n    @Benchmark\n    public void publish").append(name)
+          .append("() {\n        ").append(fieldName).append(".publishCometdChange();\n    }\n");
     }
+    Map<String, String> replacements = new HashMap<String, String>();
+    replacements.put(ENTITY_FIELDS_TOKEN, fields.toString());
+    replacements.put(ENTITY_SUBSCRIPTIONS_TOKEN, subscriptions.toString());
+    replacements.put(ENTITY_BENCHMARKS_TOKEN, benchmarks.toString());
+
+    installRuntimeType(Path.SRC_TEST_JAVA, CometdRuntimeTypes.BENCHMARK_SUPPORT, Collections.<String, String>emptyMap(), false);
+    installRuntimeType(Path.SRC_TEST_JAVA, CometdRuntimeTypes.PUBLISH_BENCHMARK, Collections.<String, String>emptyMap(), false);
+    installRuntimeType(Path.SRC_TEST_JAVA, CometdRuntimeTypes.ENTITY_PUBLISH_BENCHMARK, replacements, true);
 
     String moduleName = projectOperations.getFocusedModuleName();
-    projectOperations.addDependencies(moduleName, dependencies);
+    projectOperations.addDependencies(moduleName, getDependencies("/configuration/benchmark/dependencies/dependency"));
+    projectOperations.addBuildPlugins(moduleName, getPlugins("/configuration/benchmark/build/plugins/plugin"));
+  }
 
-    List<Plugin> plugins = new ArrayList<Plugin>();
+  /**
+   * {@inheritDoc}
+   */
+  public void loadTest() {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
 
-    for (Element pluginElement : XmlUtils.findElements("/configuration/maven/build/plugins/plugin",
-        XmlUtils.getConfiguration(getClass()))) {
-      plugins.add(new Plugin(pluginElement));
+    StringBuilder channels = new StringBuilder();
+    for (JavaType type : getBroadcastingTypes()) {
+      channels.append("\n        ").append(type.getFullyQualifiedTypeName()).append(".class,");
     }
+    installRuntimeType(Path.SRC_TEST_JAVA, CometdRuntimeTypes.LOAD_TEST, Collections.singletonMap(CHANNELS_TOKEN, channels.toString()), true);
 
-    // search for and remove existing plugin for war plugin - should be JIRA, but Roo won't overwrite an existing one
-    // and fails silently. Should have a MUTABLE set of Maven objects, and they should allow an update of a plugin.
-    Plugin warPlugin = new Plugin("org.apache.maven.plugins", "maven-war-plugin", "2.1.1");
+    projectOperations.addDependencies(projectOperations.getFocusedModuleName(),
+        getDependencies("/configuration/loadtest/dependencies/dependency"));
+  }
 
-    if (projectOperations.getFocusedModule().isPluginRegistered(warPlugin.getGAV())) {
-        projectOperations.removeBuildPlugin(moduleName, new Plugin("org.apache.maven.plugins", "maven-war-plugin", "2.1.1"));
-      projectOperations.removeBuildPlugin(moduleName, warPlugin);
-    }
+  /**
+   * {@inheritDoc}
+   */
+  public void channels() {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
 
-    // now, add back in the plugins.
-    projectOperations.addBuildPlugins(moduleName, plugins);
+    final String webXmlPath = pathResolver.getFocusedIdentifier(
+        Path.SRC_MAIN_WEBAPP, WEB_XML);
+    Validate.isTrue(fileManager.exists(webXmlPath), "'" + webXmlPath
+        + "' does not exist");
+
+    final Document document = XmlUtils.readXml(fileManager
+        .getInputStream(webXmlPath));
+    final CometdWebXml webXml = new CometdWebXml(document);
+    Validate.notNull(webXml.getServletByClass("org.cometd.server.CometdServlet"),
+        "The cometd servlet is not configured, run 'cometd setup' first");
+
+    addStartupServlet(webXml, CHANNELS_SERVLET_NAME,
+        CometdRuntimeTypes.getType(getTopLevelPackage(), CometdRuntimeTypes.CHANNELS).getFullyQualifiedTypeName(), 2);
+
+    fileManager.createOrUpdateTextFileIfRequired(webXmlPath,
+        XmlUtils.nodeToString(document), true);
+
+    // flags are read from the annotations as written, the channel name from the constant generated into each type
+    StringBuilder channels = new StringBuilder();
+    for (JavaType type : typeLocationService.findTypesWithAnnotation(CometdAnnotationValues.ROO_COMETD)) {
+      boolean service = isAttributeSet(type, "service");
+      channels.append("\n        channel(bayeux, ").append(type.getFullyQualifiedTypeName()).append(".COMETD_CHANNEL, ")
+          .append(isAttributeSet(type, "lazy")).append(", ")
+          .append(isAttributeSet(type, "persistent")).append(", ")
+          .append(service ? "GrantAuthorizer.GRANT_PUBLISH" : "GrantAuthorizer.GRANT_SUBSCRIBE").append(");");
+    }
+    installRuntimeType(CometdRuntimeTypes.CHANNELS, Collections.singletonMap(CHANNELS_TOKEN, channels.toString()), true);
   }
 
-  private Element getAsyncTag(Document document, Element servlet) {
-    Element asyncSupport = document.createElement("asynch-supported");
-    asyncSupport.setTextContent("true");
+  /**
+   * {@inheritDoc}
+   */
+  public void bridge(JavaType javaType, int bufferSize, CometdOverflow overflow, long windowMillis) {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be positive");
+    Validate.isTrue(windowMillis >= 0, "Window must not be negative");
+    Validate.notNull(overflow, "Overflow strategy required");
+
+    // the annotations just changed are not read back, so the types being bridged now are added explicitly
+    List<JavaType> broadcastingTypes = getBroadcastingTypes();
+    Set<JavaType> enabled = new HashSet<JavaType>();
+    if (javaType != null) {
+      Validate.isTrue(broadcastingTypes.contains(javaType), "Type '" + javaType + "' is not a broadcasting @RooCometd type");
+      enabled.add(javaType);
+    } else {
+      enabled.addAll(broadcastingTypes);
+    }
+
+    // the state is taken by toCometdData on the committing thread, the bridge's thread only publishes it
+    StringBuilder snapshots = new StringBuilder();
+    for (JavaType type : broadcastingTypes) {
+      if (enabled.contains(type) || isAttributeSet(type, "bridged")) {
+        String typeName = type.getFullyQualifiedTypeName();
+        snapshots.append("\n        if (entity instanceof ").append(typeName).append(") {")
+            .append("\n            return new Change(entity, ").append(typeName).append(".COMETD_CHANNEL, ((")
+            .append(typeName).append(") entity).toCometdData());")
+            .append("\n        }");
+      }
+    }
+    Map<String, String> replacements = new HashMap<String, String>();
+    replacements.put(ENTITY_SNAPSHOTS_TOKEN, snapshots.toString());
+    replacements.put("__BUFFER_SIZE__", String.valueOf(bufferSize));
+    replacements.put("__DROP_OLDEST__", String.valueOf(overflow == CometdOverflow.LATEST));
+    replacements.put("__WINDOW_MILLIS__", windowMillis + "L");
+
+    installRuntimeType(CometdRuntimeTypes.ENTITY_EVENT, Collections.<String, String>emptyMap(), false);
+    installRuntimeType(CometdRuntimeTypes.ENTITY_EVENTS, Collections.<String, String>emptyMap(), false);
+    installRuntimeType(CometdRuntimeTypes.BRIDGE, replacements, true);
 
-    servlet.appendChild(asyncSupport);
-    return asyncSupport;
+    for (JavaType type : enabled) {
+      if (!isAttributeSet(type, "bridged")) {
+        enableAttribute(type, "bridged");
+      }
+    }
   }
 
-  public void remove() {
+  /**
+   * {@inheritDoc}
+   */
+  public void rateLimit(JavaType javaType, int rate, int burst) {
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
+    Validate.isTrue(rate >= 0, "Rate must not be negative");
+    Validate.isTrue(rate == 0 || burst > 0, "Burst must be positive");
 
-    // shamelessly lifted from the controller add-on
-    // see WebMvcOperationsImpl.java
+    final String webXmlPath = pathResolver.getFocusedIdentifier(
+        Path.SRC_MAIN_WEBAPP, WEB_XML);
+    Validate.isTrue(fileManager.exists(webXmlPath), "'" + webXmlPath
+        + "' does not exist");
+
+    final Document document = XmlUtils.readXml(fileManager
+        .getInputStream(webXmlPath));
+    final CometdWebXml webXml = new CometdWebXml(document);
+    Element initializer = webXml.getServletByName(INITIALIZER_SERVLET_NAME);
+    Validate.notNull(initializer, "The cometd initializer is not configured, run 'cometd setup' first");
+
+    Set<JavaType> changed = new HashSet<JavaType>();
+    if (javaType != null) {
+      getAnnotatedType(javaType);
+      changed.add(javaType);
+    } else {
+      changed.addAll(typeLocationService.findTypesWithAnnotation(CometdAnnotationValues.ROO_COMETD));
+    }
+
+    // the annotations just changed are not read back, so the new limits are taken from the arguments
+    StringBuilder limits = new StringBuilder();
+    for (JavaType type : typeLocationService.findTypesWithAnnotation(CometdAnnotationValues.ROO_COMETD)) {
+      int typeRate = changed.contains(type) ? rate : getIntegerAttribute(type, "rateLimit");
+      int typeBurst = changed.contains(type) ? burst : getIntegerAttribute(type, "rateBurst");
+      if (typeRate > 0) {
+        limits.append("\n        limit(").append(type.getFullyQualifiedTypeName()).append(".COMETD_CHANNEL, ")
+            .append(typeRate).append(", ").append(typeBurst > 0 ? typeBurst : typeRate).append(");");
+      }
+    }
+    installRuntimeType(CometdRuntimeTypes.RATE_LIMITER, Collections.singletonMap(LIMITS_TOKEN, limits.toString()), true);
+
+    addExtension(document, initializer,
+        CometdRuntimeTypes.getType(getTopLevelPackage(), CometdRuntimeTypes.RATE_LIMITER).getFullyQualifiedTypeName());
+    fileManager.createOrUpdateTextFileIfRequired(webXmlPath,
+        XmlUtils.nodeToString(document), true);
+
+    for (JavaType type : changed) {
+      setRateLimit(type, rate, burst);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void security(long permissionMillis, int maxPermissions) {
     Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
         "Project metadata required");
+    Validate.isTrue(permissionMillis >= 0, "Permission millis must not be negative");
+    Validate.isTrue(maxPermissions > 0, "Max permissions must be positive");
 
-    // Verify that the web.xml already exists
     final String webXmlPath = pathResolver.getFocusedIdentifier(
         Path.SRC_MAIN_WEBAPP, WEB_XML);
     Validate.isTrue(fileManager.exists(webXmlPath), "'" + webXmlPath
@@ -208,41 +818,405 @@ public class CometdOperationsImpl implements CometdOperations {
 
     final Document document = XmlUtils.readXml(fileManager
         .getInputStream(webXmlPath));
+    final CometdWebXml webXml = new CometdWebXml(document);
+    Element initializer = webXml.getServletByName(INITIALIZER_SERVLET_NAME);
+    Validate.notNull(initializer, "The cometd initializer is not configured, run 'cometd setup' first");
 
-    Element documentElement = document.getDocumentElement();
+    // the policy is the application's to complete, so an existing one is kept and only its settings change
+    installRuntimeTypes(getRuntimeModule());
+    // initializers written by earlier versions of this add-on ignore the securityPolicy init-param
+    installRuntimeType(CometdRuntimeTypes.INITIALIZER, Collections.<String, String>emptyMap(), true);
 
-    // now we have xml in memory, manipulate...
-    documentElement.setAttribute("version", "2.5");
+    setInitParam(document, initializer, "securityPolicy",
+        CometdRuntimeTypes.getType(getTopLevelPackage(), CometdRuntimeTypes.SECURITY_POLICY).getFullyQualifiedTypeName());
+    setInitParam(document, initializer, "security.permissionMillis", String.valueOf(permissionMillis));
+    setInitParam(document, initializer, "security.maxPermissions", String.valueOf(maxPermissions));
+    fileManager.createOrUpdateTextFileIfRequired(webXmlPath,
+        XmlUtils.nodeToString(document), true);
+  }
+
+  /**
+   * @return the @RooCometd types publishing to their channel's subscribers rather than to a service channel
+   */
+  private List<JavaType> getBroadcastingTypes() {
+    List<JavaType> types = new ArrayList<JavaType>();
+    for (JavaType type : typeLocationService.findTypesWithAnnotation(CometdAnnotationValues.ROO_COMETD)) {
+      if (!isAttributeSet(type, "service")) {
+        types.add(type);
+      }
+    }
+    return types;
+  }
+
+  /**
+   * @return whether a boolean attribute of the @RooCometd annotation of a type is written as true
+   */
+  private boolean isAttributeSet(JavaType type, String attributeName) {
+    AnnotationMetadata annotation = MemberFindingUtils.getAnnotationOfType(
+        typeLocationService.getTypeDetails(type).getAnnotations(), CometdAnnotationValues.ROO_COMETD);
+    AnnotationAttributeValue<?> value = annotation.getAttribute(new JavaSymbolName(attributeName));
+    return value != null && Boolean.TRUE.equals(value.getValue());
+  }
+
+  /**
+   * @return the value of an int attribute of the @RooCometd annotation of a type, 0 when not written
+   */
+  private int getIntegerAttribute(JavaType type, String attributeName) {
+    AnnotationMetadata annotation = MemberFindingUtils.getAnnotationOfType(
+        typeLocationService.getTypeDetails(type).getAnnotations(), CometdAnnotationValues.ROO_COMETD);
+    AnnotationAttributeValue<?> value = annotation.getAttribute(new JavaSymbolName(attributeName));
+    return value != null && value.getValue() instanceof Integer ? (Integer) value.getValue() : 0;
+  }
+
+  /**
+   * Sets a boolean attribute of the @RooCometd annotation of a type to true
+   */
+  private void enableAttribute(JavaType javaType, String attributeName) {
+    ClassOrInterfaceTypeDetails existing = getAnnotatedType(javaType);
+    AnnotationMetadataBuilder annotationBuilder = new AnnotationMetadataBuilder(
+        MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), CometdAnnotationValues.ROO_COMETD));
+    annotationBuilder.addBooleanAttribute(attributeName, true);
+    replaceAnnotation(existing, annotationBuilder);
+  }
+
+  /**
+   * Sets the rateLimit and rateBurst attributes of the @RooCometd annotation of a type in a single change
+   */
+  private void setRateLimit(JavaType javaType, int rate, int burst) {
+    ClassOrInterfaceTypeDetails existing = getAnnotatedType(javaType);
+    AnnotationMetadataBuilder annotationBuilder = new AnnotationMetadataBuilder(
+        MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), CometdAnnotationValues.ROO_COMETD));
+    annotationBuilder.addIntegerAttribute("rateLimit", rate);
+    annotationBuilder.addIntegerAttribute("rateBurst", rate == 0 ? 0 : burst);
+    replaceAnnotation(existing, annotationBuilder);
+  }
+
+  private ClassOrInterfaceTypeDetails getAnnotatedType(JavaType javaType) {
+    Validate.notNull(javaType, "Java type required");
+
+    ClassOrInterfaceTypeDetails existing = typeLocationService.getTypeDetails(javaType);
+    Validate.notNull(existing, "Type '" + javaType + "' not found");
+    Validate.notNull(MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), CometdAnnotationValues.ROO_COMETD),
+        "Type '" + javaType + "' is not annotated with @RooCometd");
+    return existing;
+  }
+
+  /**
+   * Replaces the @RooCometd annotation of a type with the copy built, carrying the changed attributes
+   */
+  private void replaceAnnotation(ClassOrInterfaceTypeDetails existing, AnnotationMetadataBuilder annotationBuilder) {
+    ClassOrInterfaceTypeDetailsBuilder classOrInterfaceTypeDetailsBuilder = new ClassOrInterfaceTypeDetailsBuilder(existing);
+    classOrInterfaceTypeDetailsBuilder.removeAnnotation(CometdAnnotationValues.ROO_COMETD);
+    classOrInterfaceTypeDetailsBuilder.addAnnotation(annotationBuilder.build());
+    typeManagementService.createOrUpdateTypeOnDisk(classOrInterfaceTypeDetailsBuilder.build());
+  }
+
+  /**
+   * Adds an extension class to the comma separated extensions the initializer servlet adds to the BayeuxServer
+   */
+  private void addExtension(Document document, Element initializer, String className) {
+    Element paramValue = CometdWebXml.getInitParamValue(initializer, "extensions");
+    if (paramValue == null) {
+      setInitParam(document, initializer, "extensions", className);
+    } else if (!Arrays.asList(paramValue.getTextContent().split("\\s*,\\s*")).contains(className)) {
+      paramValue.setTextContent(paramValue.getTextContent() + "," + className);
+    }
+  }
+
+  /**
+   * Writes the script connecting pages to the cometd servlet through the Dojo overlay, and the COMPACT decoder
+   */
+  private void installClientScript(String moduleName, boolean ack, boolean websocket) {
+    LogicalPath webappPath = Path.SRC_MAIN_WEBAPP.getModulePathId(moduleName);
+    String path = pathResolver.getIdentifier(webappPath, CLIENT_SCRIPT);
+    String contents = readTemplate(CLIENT_SCRIPT_TEMPLATE)
+        .replace("__ACK_REQUIRE__", ack ? "dojo.require(\"dojox.cometd.ack\");" : "")
+        .replace("__ACK_ENABLE__", ack ? "    cometd.ackEnabled = true;" : "")
+        .replace("__WEBSOCKET_ENABLED__", String.valueOf(websocket));
+    fileManager.createOrUpdateTextFileIfRequired(path, contents, false);
+
+    // the decoder of COMPACT channels
+    String compactPath = pathResolver.getIdentifier(webappPath, COMPACT_SCRIPT);
+    if (!fileManager.exists(compactPath)) {
+      fileManager.createOrUpdateTextFileIfRequired(compactPath, readTemplate(COMPACT_SCRIPT_TEMPLATE), false);
+    }
+  }
+
+  private void setInitParam(Document document, Element servlet, String name, String value) {
+    Element paramValue = CometdWebXml.getInitParamValue(servlet, name);
+    if (paramValue != null) {
+      paramValue.setTextContent(value);
+      return;
+    }
 
+    Element initParam = document.createElement("init-param");
+    Element paramName = document.createElement("param-name");
+    paramName.setTextContent(name);
+    initParam.appendChild(paramName);
+    paramValue = document.createElement("param-value");
+    paramValue.setTextContent(value);
+    initParam.appendChild(paramValue);
 
-    Element servlet = XmlUtils.findFirstElement("//servlet-class[.='org.cometd.server.CometdServlet']/..", document);
-    Element servletMapping = XmlUtils.findFirstElement("//servlet-mapping/servlet-name[.='cometd']/..", document);
+    // init-params precede every element that may follow them in the servlet element
+    Element following = null;
+    for (String name : new String[] { "load-on-startup", "enabled", "async-supported", "run-as", "security-role-ref", "multipart-config" }) {
+      following = CometdWebXml.getChild(servlet, name);
+      if (following != null) {
+        break;
+      }
+    }
+    servlet.insertBefore(initParam, following);
+  }
 
+  /**
+   * Adds a servlet without a mapping that only runs at startup, after the last servlet in web.xml, or replaces the
+   * class of the servlet of the same name
+   *
+   * @return the servlet element
+   */
+  private Element addStartupServlet(CometdWebXml webXml, String name, String className, int loadOnStartup) {
+    Element servlet = webXml.getServletByName(name);
     if (servlet != null) {
-      documentElement.removeChild(servlet);
+      Element servletClass = CometdWebXml.getChild(servlet, "servlet-class");
+      Validate.notNull(servletClass, "Servlet '" + name + "' has no servlet-class");
+      servletClass.setTextContent(className);
+      webXml.invalidate();
+      return servlet;
+    }
+
+    Document document = webXml.getDocument();
+    servlet = document.createElement("servlet");
+    Element servletName = document.createElement("servlet-name");
+    servletName.setTextContent(name);
+    servlet.appendChild(servletName);
+    Element servletClass = document.createElement("servlet-class");
+    servletClass.setTextContent(className);
+    servlet.appendChild(servletClass);
+    Element startup = document.createElement("load-on-startup");
+    startup.setTextContent(String.valueOf(loadOnStartup));
+    servlet.appendChild(startup);
+
+    Element last = webXml.getLastServlet();
+    last.getParentNode().insertBefore(servlet, last.getNextSibling());
+    webXml.invalidate();
+    return servlet;
+  }
+
+  /**
+   * Writes the support types referenced by the code generated for @RooCometd types, leaving existing ones alone
+   */
+  private void installRuntimeTypes(String moduleName) {
+    for (String simpleTypeName : RUNTIME_TYPES) {
+      installRuntimeType(moduleName, Path.SRC_MAIN_JAVA, simpleTypeName, Collections.<String, String>emptyMap(), false);
+    }
+  }
+
+  /**
+   * Writes a support type from its template into the cometd package of the runtime module
+   *
+   * @param replacements tokens of the template to replace in addition to the top level package
+   * @param overwrite whether an existing type is updated, used for types derived from the state of the project
+   */
+  private void installRuntimeType(String simpleTypeName, Map<String, String> replacements, boolean overwrite) {
+    installRuntimeType(getRuntimeModule(), Path.SRC_MAIN_JAVA, simpleTypeName, replacements, overwrite);
+  }
+
+  /**
+   * Writes a test type into the focused module, in the cometd package of the runtime module whose types it uses
+   */
+  private void installRuntimeType(Path sourcePath, String simpleTypeName, Map<String, String> replacements, boolean overwrite) {
+    installRuntimeType(projectOperations.getFocusedModuleName(), getTopLevelPackage(), sourcePath, simpleTypeName, replacements, overwrite);
+  }
+
+  private void installRuntimeType(String moduleName, Path sourcePath, String simpleTypeName, Map<String, String> replacements, boolean overwrite) {
+    installRuntimeType(moduleName, projectOperations.getTopLevelPackage(moduleName), sourcePath, simpleTypeName, replacements, overwrite);
+  }
+
+  private void installRuntimeType(String moduleName, JavaPackage topLevelPackage, Path sourcePath, String simpleTypeName,
+                                  Map<String, String> replacements, boolean overwrite) {
+    JavaType type = CometdRuntimeTypes.getType(topLevelPackage, simpleTypeName);
+    String path = pathResolver.getIdentifier(sourcePath.getModulePathId(moduleName),
+        type.getFullyQualifiedTypeName().replace('.', '/') + ".java");
+    if (!overwrite && fileManager.exists(path)) {
+      return;
+    }
+    String contents = readTemplate(CometdRuntimeTypes.getTemplateName(simpleTypeName))
+        .replace(CometdRuntimeTypes.TOP_LEVEL_PACKAGE_TOKEN, topLevelPackage.getFullyQualifiedPackageName());
+    for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+      contents = contents.replace(replacement.getKey(), replacement.getValue());
+    }
+    fileManager.createOrUpdateTextFileIfRequired(path, contents, false);
+  }
+
+  /**
+   * Writes the Jackson JSON contexts; the shared configuration is rewritten so earlier versions of it are replaced
+   */
+  private void installJacksonContexts(String moduleName) {
+    installRuntimeType(moduleName, Path.SRC_MAIN_JAVA, CometdRuntimeTypes.JACKSON, Collections.<String, String>emptyMap(), true);
+    installRuntimeType(moduleName, Path.SRC_MAIN_JAVA, CometdRuntimeTypes.JACKSON_SERVER_CONTEXT, Collections.<String, String>emptyMap(), false);
+    installRuntimeType(moduleName, Path.SRC_MAIN_JAVA, CometdRuntimeTypes.JACKSON_CLIENT_CONTEXT, Collections.<String, String>emptyMap(), false);
+  }
+
+  private List<Dependency> getDependencies(String xPathExpression) {
+    List<Dependency> dependencies = new ArrayList<Dependency>();
+    for (Element dependencyElement : getConfigurationElements(xPathExpression)) {
+      dependencies.add(new Dependency(dependencyElement));
     }
+    return dependencies;
+  }
 
-    if (servletMapping != null) {
-      documentElement.removeChild(servletMapping);
+  private List<Plugin> getPlugins(String xPathExpression) {
+    List<Plugin> plugins = new ArrayList<Plugin>();
+    for (Element pluginElement : getConfigurationElements(xPathExpression)) {
+      plugins.add(new Plugin(pluginElement));
     }
-    // note - don't do this - will not find it - document.removeChild(servletMapping);
+    return plugins;
+  }
 
-    Element filter = XmlUtils.findFirstElement("//filter-class[.='org.eclipse.jetty.servlets.CrossOriginFilter']/..", document);
-    if (filter != null) {
-      documentElement.removeChild(filter);
+  /**
+   * @return the elements of configuration.xml matching the expression, evaluated once per activation
+   */
+  private List<Element> getConfigurationElements(String xPathExpression) {
+    List<Element> elements = configurationElements.get(xPathExpression);
+    if (elements == null) {
+      Element root = configuration;
+      if (root == null) {
+        root = XmlUtils.getConfiguration(getClass());
+        configuration = root;
+      }
+      elements = Collections.unmodifiableList(XmlUtils.findElements(xPathExpression, root));
+      configurationElements.putIfAbsent(xPathExpression, elements);
     }
+    return elements;
+  }
 
-    Element filterMapping = XmlUtils.findFirstElement("//filter-mapping/filter-name[.='cross-origin']/..", document);
-    if (filterMapping != null) {
-      documentElement.removeChild(filterMapping);
+  private String readTemplate(String templateName) {
+    String cached = templates.get(templateName);
+    if (cached != null) {
+      return cached;
     }
+    InputStream template = getClass().getResourceAsStream(templateName);
+    Validate.notNull(template, "Template '" + templateName + "' not found");
+    try {
+      Scanner scanner = new Scanner(template, "UTF-8").useDelimiter("\\A");
+      String contents = scanner.hasNext() ? scanner.next() : "";
+      templates.putIfAbsent(templateName, contents);
+      return contents;
+    } finally {
+      try {
+        template.close();
+      } catch (IOException ignored) {
+        // nothing read is lost
+      }
+    }
+  }
+
+  /**
+   * @return the module the runtime types are installed in: the one declaring the @RooCometd types, or the focused
+   * module before there are any
+   */
+  private String getRuntimeModule() {
+    String runtimeModuleName = getRuntimeModuleName();
+    return runtimeModuleName == null ? projectOperations.getFocusedModuleName() : runtimeModuleName;
+  }
+
+  /**
+   * @return the top level package of the runtime module, which web.xml class names and generated types refer to
+   */
+  private JavaPackage getTopLevelPackage() {
+    return projectOperations.getTopLevelPackage(getRuntimeModule());
+  }
+
+  /**
+   * Sets async-supported on a servlet or filter, in the position the Servlet 3.0 schema requires. Replaces the
+   * misspelled asynch-supported elements, and the duplicates, written by earlier versions of this add-on.
+   */
+  private void setAsyncSupported(Document document, Element element) {
+    for (String name : new String[] { "asynch-supported", "async-supported" }) {
+      for (Element existing = CometdWebXml.getChild(element, name); existing != null; existing = CometdWebXml.getChild(element, name)) {
+        element.removeChild(existing);
+      }
+    }
+    Element asyncSupported = document.createElement("async-supported");
+    asyncSupported.setTextContent("true");
+
+    // filters declare it before their init-params, servlets after load-on-startup
+    Element following;
+    if (CometdWebXml.getChild(element, "filter-class") != null) {
+      following = CometdWebXml.getChild(element, "init-param");
+    } else {
+      following = CometdWebXml.getChild(element, "run-as");
+      if (following == null) {
+        following = CometdWebXml.getChild(element, "security-role-ref");
+      }
+      if (following == null) {
+        following = CometdWebXml.getChild(element, "multipart-config");
+      }
+    }
+    element.insertBefore(asyncSupported, following);
+  }
+
+  /**
+   * Sets the version of web.xml along with the schema it is validated against
+   */
+  private void setVersion(Document document, String version) {
+    Element webApp = document.getDocumentElement();
+    webApp.setAttribute("version", version);
+    String schemaLocation = webApp.getAttribute("xsi:schemaLocation");
+    if (StringUtils.isNotBlank(schemaLocation)) {
+      webApp.setAttribute("xsi:schemaLocation", schemaLocation.replaceAll("web-app_\\d_\\d\\.xsd", "web-app_" + version.replace('.', '_') + ".xsd"));
+    }
+  }
+
+  public void remove() {
+
+    // shamelessly lifted from the controller add-on
+    // see WebMvcOperationsImpl.java
+    Validate.isTrue(projectOperations.isFocusedProjectAvailable(),
+        "Project metadata required");
+
+    // Verify that the web.xml already exists
+    final String webXmlPath = pathResolver.getFocusedIdentifier(
+        Path.SRC_MAIN_WEBAPP, WEB_XML);
+    Validate.isTrue(fileManager.exists(webXmlPath), "'" + webXmlPath
+        + "' does not exist");
+
+    final Document document = XmlUtils.readXml(fileManager
+        .getInputStream(webXmlPath));
+    final CometdWebXml webXml = new CometdWebXml(document);
+
+    // now we have xml in memory, manipulate...
+    setVersion(document, "2.5");
+
+    // look everything up before removing, so the index is built once
+    Element servlet = webXml.getServletByClass("org.cometd.server.CometdServlet");
+    Element servletMapping = webXml.getServletMapping("cometd");
+    Element filter = webXml.getFilterByClass("org.eclipse.jetty.servlets.CrossOriginFilter");
+    Element filterMapping = webXml.getFilterMapping("cross-origin");
+    Element gzipFilter = webXml.getFilterByName(GZIP_FILTER_NAME);
+    Element gzipFilterMapping = webXml.getFilterMapping(GZIP_FILTER_NAME);
+    List<Element> startupServlets = new ArrayList<Element>();
+    for (String name : new String[] { INITIALIZER_SERVLET_NAME, OORT_SERVLET_NAME, SETI_SERVLET_NAME,
+        CLUSTER_INITIALIZER_SERVLET_NAME, METRICS_SERVLET_NAME, CHANNELS_SERVLET_NAME }) {
+      startupServlets.add(webXml.getServletByName(name));
+    }
+
+    webXml.remove(servlet);
+    webXml.remove(servletMapping);
+    for (Element startupServlet : startupServlets) {
+      webXml.remove(startupServlet);
+    }
+    webXml.remove(filter);
+    webXml.remove(filterMapping);
+    webXml.remove(gzipFilter);
+    webXml.remove(gzipFilterMapping);
 
     fileManager.createOrUpdateTextFileIfRequired(webXmlPath,
         XmlUtils.nodeToString(document), true);
 
     List<Dependency> dependencies = new ArrayList<Dependency>();
 
-    for (Element dependencyElement : XmlUtils.findElements("/configuration/maven/dependencies/dependency", XmlUtils.getConfiguration(getClass()))) {
+    for (Element dependencyElement : getConfigurationElements("/configuration/maven/dependencies/dependency")) {
       // TODO - how to guard this if dependency isn't already there??
       dependencies.remove(new Dependency(dependencyElement));
     }
@@ -252,10 +1226,28 @@ public class CometdOperationsImpl implements CometdOperations {
 
     List<Plugin> plugins = new ArrayList<Plugin>();
 
-    for (Element pluginElement : XmlUtils.findElements("/configuration/maven/build/plugins/plugin",
-        XmlUtils.getConfiguration(getClass()))) {
+    for (Element pluginElement : getConfigurationElements("/configuration/maven/build/plugins/plugin")) {
       // TODO - how to guard this if plugin isn't already there??
       plugins.remove(new Plugin(pluginElement));
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * The state of one web module during setup, kept from configuring its web.xml until every change is written
+   */
+  private static final class ModuleSetup {
+    private final String moduleName;
+    private final String webXmlPath;
+    private final Document document;
+    private final String runtimeModuleName;
+    private String webXmlContents;
+    private long webXmlNanos;
+
+    private ModuleSetup(String moduleName, String webXmlPath, Document document, String runtimeModuleName) {
+      this.moduleName = moduleName;
+      this.webXmlPath = webXmlPath;
+      this.document = document;
+      this.runtimeModuleName = runtimeModuleName;
+    }
+  }
+}
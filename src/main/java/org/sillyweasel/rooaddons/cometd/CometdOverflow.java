@@ -0,0 +1,20 @@
+package org.sillyweasel.rooaddons.cometd;
+
+/**
+ * What the bridge generated by <code>cometd bridge</code> discards when its buffer of entity
+ * changes is full.
+ *
+ * @since 1.1
+ */
+public enum CometdOverflow {
+
+  /**
+   * Discard the new change, keeping the buffered ones
+   */
+  DROP,
+
+  /**
+   * Discard the oldest buffered change, keeping the latest ones
+   */
+  LATEST
+}
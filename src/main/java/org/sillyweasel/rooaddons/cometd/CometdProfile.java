@@ -0,0 +1,55 @@
+package org.sillyweasel.rooaddons.cometd;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sets of CometD servlet init-params written by <code>cometd setup --profile</code>. Every profile
+ * keeps <code>logLevel</code> at 0, as debug logging on the Bayeux path costs real CPU in production;
+ * raise it explicitly with <code>--logLevel</code> when diagnosing.
+ *
+ * @since 1.1
+ */
+public enum CometdProfile {
+
+  /**
+   * General purpose settings close to the CometD defaults
+   */
+  DEFAULT("60000", "0", "10000", "5000", "-1", "997", "32768", "65536"),
+
+  /**
+   * Short long-polls and lazy timeout so messages reach clients quickly, with a bounded queue
+   */
+  LOW_LATENCY("20000", "0", "10000", "100", "1000", "997", "16384", "65536"),
+
+  /**
+   * Long polls, a long lazy timeout to coalesce deliveries and small per-connection buffers and queues,
+   * for many connections each receiving the same broadcasts
+   */
+  HIGH_FANOUT("60000", "0", "30000", "2000", "500", "2003", "8192", "65536");
+
+  private final Map<String, String> initParams;
+
+  private CometdProfile(String timeout, String interval, String maxInterval, String maxLazyTimeout, String maxQueue,
+                        String sweepIntervalMs, String wsBufferSize, String wsMaxMessageSize) {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    params.put("timeout", timeout);
+    params.put("interval", interval);
+    params.put("maxInterval", maxInterval);
+    params.put("maxLazyTimeout", maxLazyTimeout);
+    params.put("maxQueue", maxQueue);
+    params.put("sweepIntervalMs", sweepIntervalMs);
+    params.put("ws.bufferSize", wsBufferSize);
+    params.put("ws.maxMessageSize", wsMaxMessageSize);
+    params.put("logLevel", "0");
+    this.initParams = Collections.unmodifiableMap(params);
+  }
+
+  /**
+   * @return the init-params of this profile, in the order they are written to web.xml
+   */
+  public Map<String, String> getInitParams() {
+    return initParams;
+  }
+}
@@ -0,0 +1,21 @@
+package org.sillyweasel.rooaddons.cometd;
+
+/**
+ * What the generated service executor does with a handler arriving while it is full, written by
+ * <code>cometd setup --executorRejection</code>. Mirrors the <code>Rejection</code> of the generated
+ * <code>CometdServiceExecutor</code>, which reads the constant's name.
+ *
+ * @since 1.1
+ */
+public enum CometdRejection {
+
+  /**
+   * Run the handler on the transport thread that received the message, slowing its intake
+   */
+  CALLER_RUNS,
+
+  /**
+   * Drop the message
+   */
+  DISCARD
+}
@@ -0,0 +1,72 @@
+package org.sillyweasel.rooaddons.cometd;
+
+import org.springframework.roo.model.JavaPackage;
+import org.springframework.roo.model.JavaType;
+
+/**
+ * Names of the support types this add-on installs into the target project. They are written
+ * by {@link CometdOperationsImpl} from the <code>*-template._java</code> resources and are
+ * referenced by the code {@link CometdMetadata} generates, so both sides resolve them here.
+ *
+ * @since 1.1
+ */
+public final class CometdRuntimeTypes {
+
+  /**
+   * Sub-package of the project's top level package the support types are written to
+   */
+  public static final String SUB_PACKAGE = "cometd";
+
+  /**
+   * Placeholder replaced with the project's top level package when a template is installed
+   */
+  public static final String TOP_LEVEL_PACKAGE_TOKEN = "__TOP_LEVEL_PACKAGE__";
+
+  public static final String INITIALIZER = "CometdInitializer";
+  public static final String PUBLISHER = "CometdPublisher";
+  public static final String CHANNEL_PUBLISHER = "CometdChannelPublisher";
+  public static final String CHANNEL_SETTINGS = "CometdChannelSettings";
+  public static final String CONFLATER = "CometdConflater";
+  public static final String JACKSON = "CometdJackson";
+  public static final String JACKSON_SERVER_CONTEXT = "CometdJacksonJSONContextServer";
+  public static final String JACKSON_CLIENT_CONTEXT = "CometdJacksonJSONContextClient";
+  public static final String CLUSTER_INITIALIZER = "CometdClusterInitializer";
+  public static final String CLUSTER_CONFIG = "CometdClusterConfig";
+  public static final String OORT_STATIC_CONFIG_SERVLET = "CometdOortStaticConfigServlet";
+  public static final String OORT_MULTICAST_CONFIG_SERVLET = "CometdOortMulticastConfigServlet";
+  public static final String METRICS = "CometdMetrics";
+  public static final String METRICS_MBEAN = "CometdMetricsMBean";
+  public static final String CHANNEL_METRICS = "CometdChannelMetrics";
+  public static final String CHANNEL_METRICS_MBEAN = "CometdChannelMetricsMBean";
+  public static final String METRICS_INITIALIZER = "CometdMetricsInitializer";
+  public static final String BENCHMARK_SUPPORT = "CometdBenchmarkSupport";
+  public static final String PUBLISH_BENCHMARK = "CometdPublishBenchmark";
+  public static final String ENTITY_PUBLISH_BENCHMARK = "CometdEntityPublishBenchmark";
+  public static final String LOAD_TEST = "CometdLoadTest";
+  public static final String CHANNELS = "CometdChannels";
+  public static final String SERVICE = "CometdService";
+  public static final String SERVICE_EXECUTOR = "CometdServiceExecutor";
+  public static final String ENTITY_EVENT = "CometdEntityEvent";
+  public static final String ENTITY_EVENTS = "CometdEntityEvents";
+  public static final String BRIDGE = "CometdBridge";
+  public static final String COMPACT_ENCODER = "CometdCompactEncoder";
+  public static final String RATE_LIMITER = "CometdRateLimiter";
+  public static final String HISTORY = "CometdHistory";
+  public static final String SECURITY_POLICY = "CometdSecurityPolicy";
+  public static final String FAN_OUT = "CometdFanOut";
+
+  private CometdRuntimeTypes() {
+  }
+
+  public static String getPackageName(JavaPackage topLevelPackage) {
+    return topLevelPackage.getFullyQualifiedPackageName() + "." + SUB_PACKAGE;
+  }
+
+  public static JavaType getType(JavaPackage topLevelPackage, String simpleTypeName) {
+    return new JavaType(getPackageName(topLevelPackage) + "." + simpleTypeName);
+  }
+
+  public static String getTemplateName(String simpleTypeName) {
+    return simpleTypeName + "-template._java";
+  }
+}
@@ -0,0 +1,64 @@
+package org.sillyweasel.rooaddons.cometd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * The server transports <code>cometd setup --transports</code> allows, in order of priority. Both
+ * polling transports run on Jetty continuations, which suspend the request through Servlet 3.0
+ * asynchronous processing so a waiting long-poll holds no thread; CometD 2.4 has no separate
+ * asynchronous JSON transport.
+ *
+ * @since 1.1
+ */
+public enum CometdTransport {
+
+  WEBSOCKET("websocket"),
+  LONG_POLLING("long-polling"),
+  CALLBACK_POLLING("callback-polling");
+
+  private final String transportName;
+
+  private CometdTransport(String transportName) {
+    this.transportName = transportName;
+  }
+
+  /**
+   * @return the name CometD knows the transport by, as listed in the <code>allowedTransports</code> init-param
+   */
+  public String getTransportName() {
+    return transportName;
+  }
+
+  /**
+   * @param transportNames comma separated transport names, highest priority first
+   */
+  public static List<CometdTransport> parse(String transportNames) {
+    List<CometdTransport> transports = new ArrayList<CometdTransport>();
+    for (String transportName : StringUtils.split(transportNames, ", ")) {
+      CometdTransport transport = null;
+      for (CometdTransport candidate : values()) {
+        if (candidate.transportName.equals(transportName) || candidate.name().equals(transportName)) {
+          transport = candidate;
+        }
+      }
+      Validate.notNull(transport, "Unknown transport '" + transportName + "', expected websocket, long-polling or callback-polling");
+      if (!transports.contains(transport)) {
+        transports.add(transport);
+      }
+    }
+    Validate.notEmpty(transports, "At least one transport required");
+    return transports;
+  }
+
+  public static String join(List<CometdTransport> transports) {
+    List<String> transportNames = new ArrayList<String>();
+    for (CometdTransport transport : transports) {
+      transportNames.add(transport.transportName);
+    }
+    return StringUtils.join(transportNames, ",");
+  }
+}
@@ -0,0 +1,207 @@
+package org.sillyweasel.rooaddons.cometd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Index of the servlet and filter elements of a web.xml document and their mappings, built from a single pass over
+ * the children of <code>web-app</code> instead of document-wide XPath scans. Callers {@link #invalidate()} it after
+ * changing the document other than through {@link #remove(Element)}; it is rebuilt on the next lookup.
+ *
+ * @since 1.1
+ */
+final class CometdWebXml {
+
+  private final Document document;
+
+  private Map<String, Element> servletsByName;
+  private Map<String, Element> servletsByClass;
+  private Map<String, Element> servletMappings;
+  private Map<String, Element> filtersByName;
+  private Map<String, Element> filtersByClass;
+  private Map<String, Element> filterMappings;
+  private Element lastServlet;
+
+  CometdWebXml(Document document) {
+    this.document = document;
+  }
+
+  Document getDocument() {
+    return document;
+  }
+
+  void invalidate() {
+    servletsByName = null;
+  }
+
+  Element getServletByName(String name) {
+    index();
+    return servletsByName.get(name);
+  }
+
+  Element getServletByClass(String className) {
+    index();
+    return servletsByClass.get(className);
+  }
+
+  Element getServletMapping(String servletName) {
+    index();
+    return servletMappings.get(servletName);
+  }
+
+  Element getFilterByName(String name) {
+    index();
+    return filtersByName.get(name);
+  }
+
+  Element getFilterByClass(String className) {
+    index();
+    return filtersByClass.get(className);
+  }
+
+  Element getFilterMapping(String filterName) {
+    index();
+    return filterMappings.get(filterName);
+  }
+
+  /**
+   * Scans every filter-mapping, as a filter may have several and the index keeps only the first
+   *
+   * @return the filters mapped to the servlet or to a url-pattern covering the path, in the order of their mappings
+   */
+  List<Element> getFiltersCovering(String servletName, String path) {
+    index();
+    Set<Element> filters = new LinkedHashSet<Element>();
+    for (Node child = document.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (!(child instanceof Element) || !"filter-mapping".equals(getName(child))) {
+        continue;
+      }
+      Element filter = filtersByName.get(getChildText((Element) child, "filter-name"));
+      if (filter != null && covers((Element) child, servletName, path)) {
+        filters.add(filter);
+      }
+    }
+    return new ArrayList<Element>(filters);
+  }
+
+  private static boolean covers(Element filterMapping, String servletName, String path) {
+    for (Node child = filterMapping.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (!(child instanceof Element)) {
+        continue;
+      }
+      String name = getName(child);
+      String value = child.getTextContent().trim();
+      if ("servlet-name".equals(name) && (value.equals(servletName) || value.equals("*"))) {
+        return true;
+      }
+      if ("url-pattern".equals(name) && (value.equals(path)
+          || value.endsWith("/*") && path.startsWith(value.substring(0, value.length() - 1)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the last servlet element of the document, or null if there is none
+   */
+  Element getLastServlet() {
+    index();
+    return lastServlet;
+  }
+
+  /**
+   * Removes an element from the document, ignoring null
+   */
+  void remove(Element element) {
+    if (element != null) {
+      element.getParentNode().removeChild(element);
+      invalidate();
+    }
+  }
+
+  /**
+   * @return the first child element of the given name, or null
+   */
+  static Element getChild(Element parent, String name) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child instanceof Element && name.equals(getName(child))) {
+        return (Element) child;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the param-value element of the named init-param of a servlet or filter, or null
+   */
+  static Element getInitParamValue(Element parent, String name) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child instanceof Element && "init-param".equals(getName(child))
+          && name.equals(getChildText((Element) child, "param-name"))) {
+        return getChild((Element) child, "param-value");
+      }
+    }
+    return null;
+  }
+
+  private void index() {
+    if (servletsByName != null) {
+      return;
+    }
+    servletsByName = new HashMap<String, Element>();
+    servletsByClass = new HashMap<String, Element>();
+    servletMappings = new HashMap<String, Element>();
+    filtersByName = new HashMap<String, Element>();
+    filtersByClass = new HashMap<String, Element>();
+    filterMappings = new HashMap<String, Element>();
+    lastServlet = null;
+
+    for (Node child = document.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (!(child instanceof Element)) {
+        continue;
+      }
+      Element element = (Element) child;
+      String name = getName(element);
+      if ("servlet".equals(name)) {
+        putIfAbsent(servletsByName, getChildText(element, "servlet-name"), element);
+        putIfAbsent(servletsByClass, getChildText(element, "servlet-class"), element);
+        lastServlet = element;
+      } else if ("servlet-mapping".equals(name)) {
+        putIfAbsent(servletMappings, getChildText(element, "servlet-name"), element);
+      } else if ("filter".equals(name)) {
+        putIfAbsent(filtersByName, getChildText(element, "filter-name"), element);
+        putIfAbsent(filtersByClass, getChildText(element, "filter-class"), element);
+      } else if ("filter-mapping".equals(name)) {
+        putIfAbsent(filterMappings, getChildText(element, "filter-name"), element);
+      }
+    }
+  }
+
+  private static void putIfAbsent(Map<String, Element> index, String key, Element element) {
+    // the first element wins, as the XPath lookups this replaces found the first match
+    if (key != null && !index.containsKey(key)) {
+      index.put(key, element);
+    }
+  }
+
+  /**
+   * @return the trimmed text of the first child element of the given name, or null
+   */
+  static String getChildText(Element parent, String name) {
+    Element child = getChild(parent, name);
+    return child == null ? null : child.getTextContent().trim();
+  }
+
+  private static String getName(Node node) {
+    return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+  }
+}
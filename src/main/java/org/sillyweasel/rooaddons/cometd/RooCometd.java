@@ -6,12 +6,110 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * Trigger annotation for this add-on.
+ * Trigger annotation for this add-on. The attributes tune the publisher generated for the annotated type.
  
  * @since 1.1
  */
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.SOURCE)
 public @interface RooCometd {
-}
 
+    /**
+     * @return the channel changes are published to; defaults to the uncapitalised simple type name
+     * (under <code>/service</code> for {@link #service()} types)
+     */
+    String channel() default "";
+
+    /**
+     * @return whether changes are sent as lazy messages, which ride along with the next long-poll
+     * or <code>maxLazyTimeout</code> rather than forcing an immediate flush to each subscriber
+     */
+    boolean lazy() default false;
+
+    /**
+     * @return the number of pending changes that triggers a flush; 1 delivers every change immediately
+     */
+    int batchSize() default 100;
+
+    /**
+     * @return the maximum time a change waits for its batch to fill, in milliseconds
+     */
+    long flushMillis() default 50;
+
+    /**
+     * @return whether changes are delivered to individual sessions on a service channel
+     * instead of being broadcast to the channel's subscribers
+     */
+    boolean service() default false;
+
+    /**
+     * @return whether the channel is observed by Oort, so broadcasts reach subscribers on every node
+     * of a cluster set up with <code>cometd cluster</code>
+     */
+    boolean clustered() default false;
+
+    /**
+     * @return whether the generated publisher reports to the channel's JMX counters installed by <code>cometd metrics</code>
+     */
+    boolean metrics() default false;
+
+    /**
+     * @return whether queued messages are collapsed so a session only receives the newest update per
+     * {@link #conflationKey()}, for high-rate entities where only the latest value matters
+     */
+    boolean conflate() default false;
+
+    /**
+     * @return the field identifying an entity when conflating or publishing {@link CometdFormat#COMPACT} changes;
+     * read through its accessor when not declared by the type
+     */
+    String conflationKey() default "id";
+
+    /**
+     * @return whether the channel is kept by the server without subscribers, once created at startup
+     * by the configuration <code>cometd channels</code> generates
+     */
+    boolean persistent() default false;
+
+    /**
+     * @return whether committed JPA changes of the type are published through the bridge generated by
+     * <code>cometd bridge</code>, from callbacks introduced into the type
+     */
+    boolean bridged() default false;
+
+    /**
+     * @return the payload of the published messages; {@link CometdFormat#COMPACT} sends the values changed since the
+     * entity's previous message only, and cannot be combined with {@link #conflate()} or {@link #service()}
+     */
+    CometdFormat format() default CometdFormat.MAP;
+
+    /**
+     * @return the messages per second each client session may publish to the channel, enforced by the extension
+     * <code>cometd ratelimit</code> generates; 0 for no limit
+     */
+    int rateLimit() default 0;
+
+    /**
+     * @return the messages a client session may publish at once before {@link #rateLimit()} applies
+     */
+    int rateBurst() default 0;
+
+    /**
+     * @return the number of most recent messages kept per channel and replayed to each new subscriber, so late
+     * joiners receive the current state over the channel itself; 0 keeps none. Not available to {@link #service()}
+     * types or with the {@link CometdFormat#COMPACT} format.
+     */
+    int history() default 0;
+
+    /**
+     * @return the age in milliseconds after which a message leaves the {@link #history()}; 0 for no age limit
+     */
+    long historyMillis() default 0;
+
+    /**
+     * @return whether batches are serialised once and delivered from one thread per processor, each session always
+     * from the same thread so it receives changes in order, for channels with many subscribers. Not available to
+     * {@link #service()} or {@link #clustered()} types.
+     */
+    boolean striped() default false;
+}
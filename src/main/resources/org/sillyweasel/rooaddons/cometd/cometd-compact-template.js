@@ -0,0 +1,49 @@
+/*
+ * Decodes the COMPACT format of @RooCometd channels, where each message carries the key of an
+ * entity and only the values changed since the entity's previous message. Written by 'cometd setup'.
+ *
+ *   cometdCompact.subscribe(dojox.cometd, "/stock", "id", function(entity, changes) { ... });
+ *
+ * The callback receives the entity merged from every message received for its key, and the values
+ * of the message itself. Messages published before the subscription are not received, so the
+ * initial state of the entities is loaded separately; forget() releases an entity no longer shown.
+ */
+var cometdCompact = (function() {
+    function Decoder(key) {
+        this.key = key;
+        this.entities = {};
+    }
+
+    Decoder.prototype.decode = function(changes) {
+        var id = changes[this.key];
+        var entity = this.entities[id];
+        if (!entity) {
+            entity = this.entities[id] = {};
+        }
+        for (var name in changes) {
+            if (changes.hasOwnProperty(name)) {
+                entity[name] = changes[name];
+            }
+        }
+        return entity;
+    };
+
+    Decoder.prototype.forget = function(id) {
+        delete this.entities[id];
+    };
+
+    return {
+        Decoder: Decoder,
+
+        /*
+         * Subscribes to a COMPACT channel, returning the decoder along with the subscription
+         */
+        subscribe: function(cometd, channel, key, callback) {
+            var decoder = new Decoder(key);
+            var subscription = cometd.subscribe(channel, function(message) {
+                callback(decoder.decode(message.data), message.data);
+            });
+            return { decoder: decoder, subscription: subscription };
+        }
+    };
+})();
@@ -0,0 +1,38 @@
+/*
+ * Connects the page to the cometd servlet through the Dojo CometD bindings, preferring the
+ * WebSocket transport when the server allows it. Written by 'cometd setup'; per-message
+ * compression of WebSocket frames is negotiated by the browser with the server, the
+ * long-polling fallback is gzipped when enabled.
+ *
+ * The servlet is looked up under the context path this script is served from, as
+ * <context>/js/cometd-setup.js; a page served elsewhere sets cometdContextPath before loading it.
+ */
+dojo.require("dojox.cometd");
+__ACK_REQUIRE__
+(function() {
+    if (window.cometdContextPath !== undefined) {
+        return;
+    }
+    window.cometdContextPath = "";
+    var scripts = document.getElementsByTagName("script");
+    for (var i = 0; i < scripts.length; i++) {
+        var match = /^(?:[a-z]+:\/\/[^\/]*)?(.*)\/js\/cometd-setup\.js(?:[?#].*)?$/i.exec(scripts[i].src);
+        if (match) {
+            window.cometdContextPath = match[1];
+            return;
+        }
+    }
+})();
+dojo.addOnLoad(function() {
+    var cometd = dojox.cometd;
+    cometd.websocketEnabled = __WEBSOCKET_ENABLED__;
+__ACK_ENABLE__
+    cometd.configure({
+        url: location.protocol + "//" + location.host + window.cometdContextPath + "/cometd",
+        logLevel: "warn"
+    });
+    cometd.handshake();
+    dojo.addOnUnload(function() {
+        cometd.disconnect(true);
+    });
+});